@@ -0,0 +1,60 @@
+package me.dags.discordsync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.function.Predicate;
+
+/**
+ * Compares {@link MessageProcessor} with the original regex implementation. The run fails
+ * before measuring anything if the differential check in {@link MessageProcessorTest} does.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Thread)
+public class MessageProcessorBenchmark {
+
+    private static final Predicate<String> ALLOW = permission -> true;
+    private static final Predicate<String> DENY = permission -> false;
+
+    @Param({
+            "anyone going to the nether later? I need blaze rods",
+            "@Notch can you tp me to spawn",
+            "@everyone server restart in 5 minutes, @here too",
+    })
+    public String content;
+
+    // the same differential check that the build runs, so a broken processor isn't benchmarked
+    @Setup(Level.Trial)
+    public void verify() {
+        new MessageProcessorTest().matchesLegacyProcessor();
+    }
+
+    @Benchmark
+    public String permitted() {
+        return MessageProcessor.processContent(ALLOW, content);
+    }
+
+    @Benchmark
+    public String denied() {
+        return MessageProcessor.processContent(DENY, content);
+    }
+
+    @Benchmark
+    public String legacyPermitted() {
+        return LegacyMessageProcessor.processContent(ALLOW, content);
+    }
+
+    @Benchmark
+    public String legacyDenied() {
+        return LegacyMessageProcessor.processContent(DENY, content);
+    }
+}
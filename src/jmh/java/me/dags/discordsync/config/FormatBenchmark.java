@@ -0,0 +1,92 @@
+package me.dags.discordsync.config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.MessageFormat;
+
+/**
+ * Renders the default {@link Channels.Discord} formats for one chat message, join and quit,
+ * using the precompiled {@link MessageTemplate}s and the original MessageFormat.format calls.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Thread)
+public class FormatBenchmark {
+
+    private static final String[] PATTERNS = {
+            "{0} ({1})", "**{0}**: {1}", "it''s {0}", "'{0}' is {0}", "''{0}''", "'unterminated {0}",
+            "{5}", "}{0}{", "{1}{0}{1}", "{0,number}", "{ 0}", "{01}", "'{'0'}'", "no arguments",
+    };
+
+    private final Channels.Discord discord = new Channels.Discord();
+    private final DiscordChannel.Format format = new DiscordChannel.Format(discord);
+
+    @Setup(Level.Trial)
+    public void verify() {
+        Object[][] arguments = {{}, {"Notch"}, {"Notch", "Minecraft Server"}, {null, "{1}"}};
+        for (String pattern : PATTERNS) {
+            MessageTemplate template = MessageTemplate.compile(pattern);
+            for (Object[] args : arguments) {
+                String expected = format(pattern, args);
+                String actual = render(template, args);
+                if (!expected.equals(actual)) {
+                    String error = "Output differs for '%s'. Expected: '%s', actual: '%s'";
+                    throw new IllegalStateException(String.format(error, pattern, expected, actual));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void chat(Blackhole blackhole) {
+        blackhole.consume(format.getTitle("Notch", "Minecraft Server"));
+        blackhole.consume(format.getAvatar("Notch"));
+        blackhole.consume(format.getMessage("Notch", "anyone going to the nether later?"));
+    }
+
+    @Benchmark
+    public void connect(Blackhole blackhole) {
+        blackhole.consume(format.getTitle("Notch", "Minecraft Server"));
+        blackhole.consume(format.getConnect("Notch"));
+        blackhole.consume(format.getDisconnect("Notch"));
+    }
+
+    @Benchmark
+    public void legacyChat(Blackhole blackhole) {
+        blackhole.consume(MessageFormat.format(discord.title, "Notch", "Minecraft Server"));
+        blackhole.consume(MessageFormat.format(discord.avatar, "Notch"));
+        blackhole.consume(MessageFormat.format(discord.message, "Notch", "anyone going to the nether later?"));
+    }
+
+    @Benchmark
+    public void legacyConnect(Blackhole blackhole) {
+        blackhole.consume(MessageFormat.format(discord.title, "Notch", "Minecraft Server"));
+        blackhole.consume(MessageFormat.format(discord.connected, "Notch"));
+        blackhole.consume(MessageFormat.format(discord.disconnected, "Notch"));
+    }
+
+    private static String format(String pattern, Object[] args) {
+        try {
+            return MessageFormat.format(pattern, args);
+        } catch (IllegalArgumentException e) {
+            return e.getClass().getName();
+        }
+    }
+
+    private static String render(MessageTemplate template, Object[] args) {
+        try {
+            return template.render(args);
+        } catch (IllegalArgumentException e) {
+            return e.getClass().getName();
+        }
+    }
+}
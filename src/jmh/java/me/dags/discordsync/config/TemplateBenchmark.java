@@ -0,0 +1,31 @@
+package me.dags.discordsync.config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongepowered.api.text.Text;
+
+/**
+ * Renders an inbound discord message the same way as EventHandler#onDiscordMessage. The
+ * template is unstyled because colour lookups need the game registry, which is not
+ * available outside of a running server.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Thread)
+public class TemplateBenchmark {
+
+    private final DiscordChannel channel = new DiscordChannel("", "`[Discord]` {name}: {message}", "");
+
+    @Benchmark
+    public Text render() {
+        return channel.getTemplate()
+                .with("name", "Notch")
+                .with("message", "anyone going to the nether later?")
+                .render();
+    }
+}
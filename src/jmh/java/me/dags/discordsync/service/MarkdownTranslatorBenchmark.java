@@ -0,0 +1,98 @@
+package me.dags.discordsync.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures {@link MarkdownTranslator} against a regex replacement of mentions (roughly what
+ * resolving the display content per message costs), on plain, markdown heavy and mention dense
+ * messages.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Thread)
+public class MarkdownTranslatorBenchmark {
+
+    private static final Pattern MENTION = Pattern.compile("<(@!?|@&|#)(\\d+)>");
+
+    @Param({"plain", "markdown", "mentions"})
+    public String type;
+
+    private final Map<String, String> lookup = new HashMap<>();
+    private NameCache names;
+    private MarkdownTranslator translator;
+    private String content;
+
+    @Setup
+    public void setup() {
+        names = new NameCache(2048);
+        for (int i = 0; i < 1000; i++) {
+            String id = Long.toString(100000000000000000L + i);
+            names.putUser(id, "user" + i);
+            names.putRole(id, "role" + i);
+            names.putChannel(id, "channel" + i);
+            lookup.put(id, "user" + i);
+        }
+        translator = new MarkdownTranslator(names);
+
+        switch (type) {
+            case "plain":
+                content = "has anyone seen my diamond pickaxe? I left it by spawn next to the big oak tree";
+                break;
+            case "markdown":
+                content = "**has anyone** seen my *diamond* pickaxe? ~~I left it~~ by `spawn` __next to__ the ||big oak tree||";
+                break;
+            default:
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < 20; i++) {
+                    sb.append("<@").append(100000000000000000L + i * 37).append("> ");
+                    sb.append("<#").append(100000000000000000L + i).append("> ");
+                    sb.append("<@&").append(100000000000000000L + i * 11).append("> ");
+                }
+                content = sb.append("come to spawn").toString();
+        }
+
+        String translated = translator.translate(content);
+        if (type.equals("mentions") && (translated.contains("<@") || translated.contains("unknown"))) {
+            throw new IllegalStateException("Unresolved mention: " + translated);
+        }
+        if (type.equals("markdown") && !translated.contains("[bold](")) {
+            throw new IllegalStateException("Untranslated markdown: " + translated);
+        }
+    }
+
+    @Benchmark
+    public String translate() {
+        return translator.translate(content);
+    }
+
+    @Benchmark
+    public boolean hasMissing() {
+        return names.hasMissing(content);
+    }
+
+    @Benchmark
+    public String regex() {
+        Matcher matcher = MENTION.matcher(content);
+        StringBuffer sb = new StringBuffer(content.length());
+        while (matcher.find()) {
+            String name = lookup.get(matcher.group(2));
+            String prefix = matcher.group(1).startsWith("#") ? "#" : "@";
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(prefix + (name == null ? "unknown" : name)));
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,70 @@
+package me.dags.discordsync.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import me.dags.discordsync.event.MessageEvent;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Compares the original String based webhook encoding with {@link WebhookPayload}. Run with
+ * the gc profiler and compare gc.alloc.rate.norm (bytes allocated per message).
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Thread)
+public class PayloadEncodingBenchmark {
+
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder().build();
+    private static final MediaType JSON = MediaType.get("application/json");
+
+    private final Buffer sink = new Buffer();
+    private MessageEvent message;
+
+    @Setup
+    public void setup() {
+        String author = "Notch (Minecraft Server)";
+        String avatar = "https://minotar.net/helm/Notch";
+        String content = "**Notch**: has anyone seen my \"diamond\" pickaxe? I left it by spawn \u2764";
+        message = new MessageEvent("", author, avatar, content);
+    }
+
+    @Benchmark
+    public long legacy() throws IOException {
+        StringWriter writer = new StringWriter(128);
+        JsonGenerator generator = JSON_FACTORY.createGenerator(writer);
+        generator.writeStartObject();
+        generator.writeStringField("username", message.getAuthor());
+        generator.writeStringField("avatar_url", message.getAvatar());
+        generator.writeStringField("content", message.getContent());
+        generator.writeEndObject();
+        generator.close();
+
+        RequestBody body = RequestBody.create(JSON, writer.toString());
+        return write(body);
+    }
+
+    @Benchmark
+    public long payload() throws IOException {
+        return write(WebhookPayload.encode(message));
+    }
+
+    private long write(RequestBody body) throws IOException {
+        body.writeTo(sink);
+        long size = sink.size();
+        sink.clear();
+        return size;
+    }
+}
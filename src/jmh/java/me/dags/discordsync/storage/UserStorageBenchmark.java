@@ -0,0 +1,109 @@
+package me.dags.discordsync.storage;
+
+import com.google.gson.stream.JsonWriter;
+import me.dags.discordsync.config.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Looks up and links users in a {@link UserStorage} that already holds {@code users} links.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@State(Scope.Benchmark)
+public class UserStorageBenchmark {
+
+    private static final long SNOWFLAKE = 100000000000000000L;
+
+    @Param({"10000", "100000", "1000000"})
+    public int users;
+
+    @Param({"json", "journal", "mapped"})
+    public String type;
+
+    private Path dir;
+    private UserStorage storage;
+    private String[] uuids;
+    private String[] snowflakes;
+    private int index = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("discordsync-bench");
+        uuids = new String[users];
+        snowflakes = new String[users];
+        for (int i = 0; i < users; i++) {
+            uuids[i] = new UUID(i, i).toString();
+            snowflakes[i] = Long.toString(SNOWFLAKE + i);
+        }
+        Path path = dir.resolve("users.json");
+        writeUsers(path);
+        Config.Storage config = new Config.Storage();
+        config.type = type;
+        storage = StorageHelper.createUserStorage(dir, config);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        storage.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(file -> file.toFile().delete());
+        }
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public String getId() {
+        return storage.getId(snowflakes[next()]);
+    }
+
+    @Benchmark
+    public String getSnowflake() {
+        return storage.getSnowFlake(uuids[next()]);
+    }
+
+    @Benchmark
+    public void setUser() {
+        int i = next();
+        storage.setUser(snowflakes[i], UUID.fromString(uuids[i]));
+    }
+
+    private int next() {
+        int i = index;
+        index = i + 1 == users ? 0 : i + 1;
+        return i;
+    }
+
+    private void writeUsers(Path path) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path); JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            writer.name("uuid").beginObject();
+            for (int i = 0; i < users; i++) {
+                writer.name(uuids[i]).value(snowflakes[i]);
+            }
+            writer.endObject();
+            writer.name("snowflake").beginObject();
+            for (int i = 0; i < users; i++) {
+                writer.name(snowflakes[i]).value(uuids[i]);
+            }
+            writer.endObject();
+            writer.endObject();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package me.dags.discordsync.loadtest;
+
+import me.dags.discordsync.config.Config;
+import me.dags.discordsync.event.MessageEvent;
+import me.dags.discordsync.metrics.Metrics;
+import me.dags.discordsync.service.HttpClients;
+import me.dags.discordsync.service.MessageSpool;
+import me.dags.discordsync.service.WebhookPipeline;
+import okhttp3.OkHttpClient;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+
+/**
+ * Drives the outbound {@link WebhookPipeline} (batcher, optional spool and dispatcher, as used by
+ * JDAService) at a fixed message rate against a {@link MockDiscord}, then reports end-to-end
+ * latency, delivered and lost counts and heap growth.
+ *
+ * Run with: gradle loadtest -PloadtestArgs="--rate 200 --seconds 60 --webhooks 4"
+ */
+public class LoadTest {
+
+
+    private final Options options;
+    private final MockDiscord discord;
+    private final AtomicLongArray sentAt;
+    private final AtomicLongArray receivedAt;
+    private final LongAdder duplicates = new LongAdder();
+
+    private LoadTest(Options options) throws IOException {
+        this.options = options;
+        this.discord = new MockDiscord(options.discord, this::onDelivered);
+        int total = (int) (options.rate * options.seconds);
+        this.sentAt = new AtomicLongArray(total);
+        this.receivedAt = new AtomicLongArray(total);
+    }
+
+    private void run() throws Exception {
+        discord.start();
+
+        OkHttpClient client = HttpClients.get(new Config.Http());
+        MessageSpool spool = null;
+        if (options.spool) {
+            spool = WebhookPipeline.openSpool(new Config.Spool(), Files.createTempDirectory("discordsync-spool"), new ArrayList<>());
+        }
+        // the same pipeline that JDAService sends through
+        WebhookPipeline pipeline = new WebhookPipeline(client, spool, options.batchWindowMs);
+
+        String[] webhooks = new String[options.webhooks];
+        for (int i = 0; i < webhooks.length; i++) {
+            webhooks[i] = discord.getWebhook(i);
+        }
+
+        long heapBefore = Stats.usedHeap();
+        long start = System.nanoTime();
+        int total = sentAt.length();
+
+        // sends in 10ms steps, spread evenly over the run
+        for (int id = 0; id < total; ) {
+            long due = start + (long) (id * 1_000_000_000D / options.rate);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(10L)));
+                continue;
+            }
+            sentAt.set(id, System.nanoTime());
+            MessageEvent message = new MessageEvent("guild", "loadtest", "", "player chat #" + id, System.currentTimeMillis());
+            pipeline.send(webhooks[id % webhooks.length], message);
+            id++;
+        }
+
+        long sendTime = System.nanoTime() - start;
+        pipeline.flush();
+        boolean drained = pipeline.drain(options.drainMs);
+        long heapAfter = Stats.usedHeap();
+
+        pipeline.shutdown(0L);
+        discord.stop();
+        HttpClients.shutdown();
+        report(total, sendTime, drained, heapBefore, heapAfter);
+    }
+
+    private void onDelivered(String body) {
+        long now = System.nanoTime();
+        Matcher matcher = Stats.ID.matcher(body);
+        while (matcher.find()) {
+            int id = Integer.parseInt(matcher.group(1));
+            if (!receivedAt.compareAndSet(id, 0L, now)) {
+                duplicates.increment();
+            }
+        }
+    }
+
+    private void report(int total, long sendTime, boolean drained, long heapBefore, long heapAfter) {
+        long[] latencies = new long[total];
+        int delivered = 0;
+        for (int i = 0; i < total; i++) {
+            long received = receivedAt.get(i);
+            if (received != 0L) {
+                latencies[delivered++] = received - sentAt.get(i);
+            }
+        }
+        Arrays.sort(latencies, 0, delivered);
+
+        System.out.printf("Sent:       %d messages in %.1fs (%.1f/s) over %d webhooks%n",
+                total, sendTime / 1e9, total / (sendTime / 1e9), options.webhooks);
+        System.out.printf("Delivered:  %d, lost: %d, duplicates: %d%s%n",
+                delivered, total - delivered, duplicates.sum(), drained ? "" : " (drain timed out)");
+        System.out.printf("Latency:    p50 %s, p90 %s, p99 %s, p99.9 %s, max %s%n",
+                Stats.millis(latencies, delivered, 0.5), Stats.millis(latencies, delivered, 0.9),
+                Stats.millis(latencies, delivered, 0.99), Stats.millis(latencies, delivered, 0.999),
+                Stats.millis(latencies, delivered, 1.0));
+        System.out.printf("Requests:   %d, accepted: %d, 429: %d, 5xx: %d%n",
+                discord.getRequests(), discord.getAccepted(), discord.getRateLimited(), discord.getErrors());
+        System.out.printf("Dispatcher: sent %d, failed %d, rate limited %d%n",
+                Metrics.WEBHOOK_SENT.get(), Metrics.WEBHOOK_FAILED.get(), Metrics.WEBHOOK_RATE_LIMITED.get());
+        System.out.printf("Heap:       %dKB before, %dKB after, %+dKB%n",
+                heapBefore / 1024, heapAfter / 1024, (heapAfter - heapBefore) / 1024);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest(Options.parse(args)).run();
+        System.exit(0);
+    }
+
+    private static class Options {
+
+        private final MockDiscord.Settings discord = new MockDiscord.Settings();
+        private double rate = 50D;
+        private long seconds = 30L;
+        private int webhooks = 4;
+        private long batchWindowMs = 250L;
+        private long drainMs = 30000L;
+        private boolean spool = false;
+
+        private static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--spool")) {
+                    options.spool = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--rate":
+                        options.rate = Double.parseDouble(value);
+                        break;
+                    case "--seconds":
+                        options.seconds = Long.parseLong(value);
+                        break;
+                    case "--webhooks":
+                        options.webhooks = Integer.parseInt(value);
+                        break;
+                    case "--batch":
+                        options.batchWindowMs = Long.parseLong(value);
+                        break;
+                    case "--drain":
+                        options.drainMs = Long.parseLong(value);
+                        break;
+                    case "--latency":
+                        options.discord.latencyMs = Long.parseLong(value);
+                        break;
+                    case "--jitter":
+                        options.discord.jitterMs = Long.parseLong(value);
+                        break;
+                    case "--bucket":
+                        options.discord.bucketSize = Integer.parseInt(value);
+                        break;
+                    case "--reset":
+                        options.discord.bucketResetMs = Long.parseLong(value);
+                        break;
+                    case "--errors":
+                        options.discord.errorRate = Double.parseDouble(value);
+                        break;
+                    case "--burst":
+                        options.discord.errorBurst = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            return options;
+        }
+    }
+}
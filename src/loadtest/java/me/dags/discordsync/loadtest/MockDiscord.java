@@ -0,0 +1,167 @@
+package me.dags.discordsync.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A local stand-in for discord's webhook endpoint. Each webhook url has its own rate-limit bucket
+ * that refills every reset period; requests beyond it get a 429 with Retry-After. Responses are
+ * delayed by a random latency, and occasional bursts of 503s simulate discord having a bad time.
+ */
+public class MockDiscord {
+
+    private final Settings settings;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Consumer<String> sink;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * @param sink receives the json body of every accepted request
+     */
+    public MockDiscord(Settings settings, Consumer<String> sink) throws IOException {
+        this.settings = settings;
+        this.sink = sink;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "mock-discord");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/api/webhooks/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getWebhook(int id) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/webhooks/" + id + "/token";
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.increment();
+            String body = read(exchange.getRequestBody());
+            sleep(settings.latencyMs + ThreadLocalRandom.current().nextLong(settings.jitterMs + 1));
+
+            Bucket bucket = buckets.computeIfAbsent(exchange.getRequestURI().getPath(), path -> new Bucket());
+            long now = System.currentTimeMillis();
+            int status;
+
+            synchronized (bucket) {
+                if (now >= bucket.resetAt) {
+                    bucket.remaining = settings.bucketSize;
+                    bucket.resetAt = now + settings.bucketResetMs;
+                }
+
+                if (bucket.remaining <= 0) {
+                    String retry = String.format("%.3f", (bucket.resetAt - now) / 1000D);
+                    exchange.getResponseHeaders().set("Retry-After", retry);
+                    exchange.getResponseHeaders().set("X-RateLimit-Remaining", "0");
+                    rateLimited.increment();
+                    status = 429;
+                } else if (bucket.failures > 0 || ThreadLocalRandom.current().nextDouble() < settings.errorRate) {
+                    bucket.failures = bucket.failures > 0 ? bucket.failures - 1 : settings.errorBurst - 1;
+                    errors.increment();
+                    status = 503;
+                } else {
+                    bucket.remaining--;
+                    String resetAfter = String.format("%.3f", (bucket.resetAt - now) / 1000D);
+                    exchange.getResponseHeaders().set("X-RateLimit-Limit", Integer.toString(settings.bucketSize));
+                    exchange.getResponseHeaders().set("X-RateLimit-Remaining", Integer.toString(bucket.remaining));
+                    exchange.getResponseHeaders().set("X-RateLimit-Reset-After", resetAfter);
+                    accepted.increment();
+                    status = 204;
+                }
+            }
+
+            if (status == 204) {
+                sink.accept(body);
+            }
+            exchange.sendResponseHeaders(status, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Bucket {
+
+        private int remaining = 0;
+        private long resetAt = 0L;
+        private int failures = 0;
+    }
+
+    public static class Settings {
+        public long latencyMs = 50L;
+        public long jitterMs = 25L;
+        // discord currently allows 5 requests per 2 seconds per webhook
+        public int bucketSize = 5;
+        public long bucketResetMs = 2000L;
+        // chance that a request starts a run of errorBurst 503 responses
+        public double errorRate = 0.01D;
+        public int errorBurst = 3;
+    }
+}
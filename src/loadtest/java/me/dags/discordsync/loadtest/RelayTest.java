@@ -0,0 +1,329 @@
+package me.dags.discordsync.loadtest;
+
+import me.dags.discordsync.config.Config;
+import me.dags.discordsync.event.MessageEvent;
+import me.dags.discordsync.event.RoleEvent;
+import me.dags.discordsync.event.SyncEvent;
+import me.dags.discordsync.metrics.Metrics;
+import me.dags.discordsync.relay.RelayServer;
+import me.dags.discordsync.relay.RelayService;
+import me.dags.discordsync.service.DiscoService;
+import org.spongepowered.api.event.Event;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.regex.Matcher;
+
+/**
+ * Runs a relay and several relay nodes in one process. Every node sends messages (at --rate per
+ * second) through the relay to a recording service standing in for discord. Then the relay fans
+ * inbound messages and role events out to every node, and each node makes a member roles request.
+ * With --restart the relay is stopped part way through the outbound phase and started again, so
+ * that the nodes have to queue, reconnect and resend what wasn't acked.
+ *
+ * Run with: gradle relaytest -PrelaytestArgs="--nodes 15 --messages 5000 --rate 500 --restart"
+ */
+public class RelayTest {
+
+
+    private final Options options;
+    private final Config config = new Config();
+    private final Recorder discord = new Recorder();
+    private final AtomicLongArray sentAt;
+    private final AtomicLongArray receivedAt;
+    private final LongAdder duplicates = new LongAdder();
+    private final Node[] nodes;
+
+    private RelayServer relay;
+
+    private RelayTest(Options options) {
+        this.options = options;
+        this.config.relay.port = options.port;
+        this.config.relay.secret = "loadtest";
+        this.config.relay.batchMs = options.batchMs;
+        this.config.relay.capacity = Math.max(config.relay.capacity, options.messages * 2);
+        this.config.relay.reconnectMs = 200L;
+        this.sentAt = new AtomicLongArray(options.nodes * options.messages);
+        this.receivedAt = new AtomicLongArray(options.nodes * options.messages);
+        this.nodes = new Node[options.nodes];
+    }
+
+    private void run() throws Exception {
+        relay = RelayServer.start(discord, config.relay).orElseThrow(() -> new IllegalStateException("Relay didn't start"));
+        long heapBefore = Stats.usedHeap();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node(i);
+        }
+        boolean connected = await(() -> count(node -> node.syncs), nodes.length, 10000L);
+        long connectTime = System.nanoTime() - start;
+
+        // outbound: every node sends from its own thread, the relay may be bounced part way through
+        start = System.nanoTime();
+        Thread[] senders = new Thread[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            Node node = nodes[i];
+            senders[i] = new Thread(node::send, "relaytest-node-" + i);
+            senders[i].start();
+        }
+        if (options.restart) {
+            await(() -> discord.received.intValue(), sentAt.length() / 4, options.drainMs);
+            relay.stop(0L);
+            TimeUnit.SECONDS.sleep(1L);
+            relay = RelayServer.start(discord, config.relay).orElseThrow(() -> new IllegalStateException("Relay didn't restart"));
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        boolean drained = await(() -> discord.received.intValue(), sentAt.length(), options.drainMs);
+        long outboundTime = System.nanoTime() - start;
+
+        // inbound: fanned out from the relay to every node
+        await(() -> relay.getNodes(), nodes.length, 10000L);
+        start = System.nanoTime();
+        for (int i = 0; i < options.messages; i++) {
+            relay.publish(new MessageEvent("guild", "channel", "author", "", "discord chat #" + i, System.currentTimeMillis()));
+        }
+        relay.onRoleAdd(RoleEvent.add("patron", "1"));
+        int expected = nodes.length * (options.messages + 1);
+        boolean fannedOut = await(() -> count(node -> node.inbound), expected, options.drainMs);
+        long inboundTime = System.nanoTime() - start;
+
+        // member roles round trip from every node at once
+        start = System.nanoTime();
+        CompletableFuture<?>[] requests = new CompletableFuture[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            requests[i] = nodes[i].service.getMemberRoles("guild", Collections.singleton("patron"));
+        }
+        CompletableFuture.allOf(requests).get(10L, TimeUnit.SECONDS);
+        long rolesTime = System.nanoTime() - start;
+
+        long heapAfter = Stats.usedHeap();
+        for (Node node : nodes) {
+            node.service.shutdown();
+        }
+        relay.stop(1000L);
+
+        report(connected, connectTime, drained, outboundTime, fannedOut, expected, inboundTime, rolesTime, heapBefore, heapAfter);
+    }
+
+    private void report(boolean connected, long connectTime, boolean drained, long outboundTime, boolean fannedOut,
+                        int expected, long inboundTime, long rolesTime, long heapBefore, long heapAfter) {
+        int total = sentAt.length();
+        long[] latencies = new long[total];
+        int delivered = 0;
+        for (int i = 0; i < total; i++) {
+            long received = receivedAt.get(i);
+            if (received != 0L) {
+                latencies[delivered++] = received - sentAt.get(i);
+            }
+        }
+        Arrays.sort(latencies, 0, delivered);
+
+        System.out.printf("Nodes:      %d connected in %.1fms%s%n",
+                nodes.length, connectTime / 1e6, connected ? "" : " (timed out)");
+        System.out.printf("Outbound:   %d of %d delivered in %.1fs, lost: %d, duplicates: %d%s%s%n",
+                delivered, total, outboundTime / 1e9, total - delivered, duplicates.sum(),
+                options.restart ? " (relay restarted)" : "", drained ? "" : " (drain timed out)");
+        System.out.printf("Latency:    p50 %s, p90 %s, p99 %s, max %s%n",
+                Stats.millis(latencies, delivered, 0.5), Stats.millis(latencies, delivered, 0.9),
+                Stats.millis(latencies, delivered, 0.99), Stats.millis(latencies, delivered, 1.0));
+        System.out.printf("Inbound:    %d of %d events delivered to nodes in %.1fms%s%n",
+                count(node -> node.inbound), expected, inboundTime / 1e6, fannedOut ? "" : " (timed out)");
+        System.out.printf("Roles:      %d requests answered in %.1fms%n", nodes.length, rolesTime / 1e6);
+        System.out.printf("Frames:     %d sent, %d received, %d dropped%n",
+                Metrics.RELAY_SENT.get(), Metrics.RELAY_RECEIVED.get(), Metrics.RELAY_DROPPED.get());
+        System.out.printf("Heap:       %dKB before, %dKB after, %+dKB%n",
+                heapBefore / 1024, heapAfter / 1024, (heapAfter - heapBefore) / 1024);
+    }
+
+    private void onDelivered(MessageEvent message) {
+        long now = System.nanoTime();
+        Matcher matcher = Stats.ID.matcher(message.getContent());
+        if (matcher.find()) {
+            int id = Integer.parseInt(matcher.group(1));
+            if (!receivedAt.compareAndSet(id, 0L, now)) {
+                duplicates.increment();
+                return;
+            }
+        }
+        discord.received.increment();
+    }
+
+    private int count(Function<Node, LongAdder> counter) {
+        long count = 0L;
+        for (Node node : nodes) {
+            if (node != null) {
+                count += counter.apply(node).sum();
+            }
+        }
+        return (int) count;
+    }
+
+    private static boolean await(IntSupplier count, int expected, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (count.getAsInt() < expected) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            TimeUnit.MILLISECONDS.sleep(5L);
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new RelayTest(Options.parse(args)).run();
+        System.exit(0);
+    }
+
+    private class Node implements Consumer<Event> {
+
+        private final int index;
+        private final RelayService service;
+        private final LongAdder syncs = new LongAdder();
+        private final LongAdder inbound = new LongAdder();
+
+        private Node(int index) throws Exception {
+            this.index = index;
+            Config node = new Config();
+            node.server.name = "node-" + index;
+            node.relay = config.relay;
+            this.service = new RelayService(node, this);
+        }
+
+        // spread evenly over the run at the per-node rate
+        private void send() {
+            int first = index * options.messages;
+            long start = System.nanoTime();
+            for (int i = 0; i < options.messages; ) {
+                long due = start + (long) (i * 1_000_000_000D / options.rate);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(10L)));
+                    continue;
+                }
+                int id = first + i++;
+                sentAt.set(id, System.nanoTime());
+                service.sendMessage("https://discord.com/api/webhooks/" + index + "/relaytest", new MessageEvent("guild", "relaytest", "", "player chat #" + id, System.currentTimeMillis()));
+            }
+        }
+
+        @Override
+        public void accept(Event event) {
+            if (event instanceof SyncEvent) {
+                syncs.increment();
+            } else if (event instanceof MessageEvent || event instanceof RoleEvent) {
+                inbound.increment();
+            }
+        }
+    }
+
+    // stands in for the relay node's connection to discord
+    private class Recorder implements DiscoService {
+
+        private final LongAdder received = new LongAdder();
+
+        @Override
+        public void sendMessage(String webhook, MessageEvent message) {
+            onDelivered(message);
+        }
+
+        @Override
+        public void sendMessageSync(String webhook, MessageEvent message) {
+            onDelivered(message);
+        }
+
+        @Override
+        public CompletableFuture<Map<String, Set<String>>> getMemberRoles(String guild, Collection<String> roles) {
+            return CompletableFuture.completedFuture(Collections.singletonMap("1", Collections.singleton("patron")));
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public void configure(Config config) {
+        }
+
+        @Override
+        public void setMessageHandler(Consumer<MessageEvent> handler) {
+        }
+
+        @Override
+        public void setLinkHandler(BiFunction<String, String, String> handler) {
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        @Override
+        public long getQueueWait() {
+            return 0;
+        }
+    }
+
+    private static class Options {
+
+        private int nodes = 8;
+        private int messages = 1000;
+        private double rate = 500D;
+        private int port = 19226;
+        private long batchMs = 10L;
+        private long drainMs = 30000L;
+        private boolean restart = false;
+
+        private static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--restart")) {
+                    options.restart = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--nodes":
+                        options.nodes = Integer.parseInt(value);
+                        break;
+                    case "--messages":
+                        options.messages = Integer.parseInt(value);
+                        break;
+                    case "--rate":
+                        options.rate = Double.parseDouble(value);
+                        break;
+                    case "--port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "--batch":
+                        options.batchMs = Long.parseLong(value);
+                        break;
+                    case "--drain":
+                        options.drainMs = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            return options;
+        }
+    }
+}
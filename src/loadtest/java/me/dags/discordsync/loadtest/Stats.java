@@ -0,0 +1,39 @@
+package me.dags.discordsync.loadtest;
+
+import java.util.regex.Pattern;
+
+/**
+ * Helpers shared by the load tests for tagging messages and reporting results.
+ */
+final class Stats {
+
+    // each test message carries its id as "#<id>" so that deliveries can be matched up with sends
+    static final Pattern ID = Pattern.compile("#(\\d+)");
+
+    private Stats() {
+    }
+
+    /**
+     * @param sorted nanosecond samples, sorted ascending up to {@code count}
+     */
+    static String millis(long[] sorted, int count, double percentile) {
+        return count == 0 ? "-" : String.format("%.1fms", percentile(sorted, count, percentile) / 1e6);
+    }
+
+    static String micros(long[] sorted, double percentile) {
+        return sorted.length == 0 ? "-" : String.format("%.1fus", percentile(sorted, sorted.length, percentile) / 1e3);
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long percentile(long[] sorted, int count, double percentile) {
+        int index = Math.min(count - 1, (int) Math.ceil(count * percentile) - 1);
+        return sorted[Math.max(0, index)];
+    }
+}
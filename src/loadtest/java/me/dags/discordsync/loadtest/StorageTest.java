@@ -0,0 +1,268 @@
+package me.dags.discordsync.loadtest;
+
+import com.google.gson.stream.JsonWriter;
+import me.dags.discordsync.config.Config;
+import me.dags.discordsync.metrics.Counter;
+import me.dags.discordsync.metrics.Metrics;
+import me.dags.discordsync.storage.SqlUserStorage;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.javax.SQLiteConnectionPoolDataSource;
+
+import javax.sql.DataSource;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link SqlUserStorage} against an embedded database (h2 or sqlite, both through h2's
+ * connection pool): imports a generated users.json, re-links a share of the players from either side, checks
+ * every link through a warm and a cold cache, then has several threads look up a skewed mix of players.
+ *
+ * Run with: gradle storagetest -PstoragetestArgs="--db sqlite --users 100000 --threads 4"
+ */
+public class StorageTest {
+
+    private final Options options;
+    private final Config.Sql config = new Config.Sql();
+    private final Map<String, String> expectedById = new HashMap<>();
+    private final Map<String, String> expectedBySnowflake = new HashMap<>();
+
+    private StorageTest(Options options) {
+        this.options = options;
+        this.config.cacheSize = options.cacheSize;
+        this.config.cacheTtlSeconds = options.ttlSeconds;
+    }
+
+    private void run() throws Exception {
+        Path dir = Files.createTempDirectory("discordsync-storage");
+        Path json = dir.resolve("users.json");
+        writeUsers(json);
+        DataSource source = open(dir);
+
+        long start = System.nanoTime();
+        SqlUserStorage storage = new SqlUserStorage(source, config, json);
+        long importTime = System.nanoTime() - start;
+        int[] imported = {0};
+        storage.iterate((id, snowflake) -> imported[0]++);
+        // cache some players first, so that re-linking them has to replace what is cached
+        for (int i = 0; i < options.users; i += Math.max(1, options.users / options.cacheSize)) {
+            storage.getSnowFlake(uuid(i));
+        }
+
+        // half take an existing player's snowflake, half give an existing player a new one
+        Random random = new Random(1L);
+        long[] setLatencies = new long[options.links];
+        start = System.nanoTime();
+        for (int i = 0; i < options.links; i++) {
+            int user = random.nextInt(options.users);
+            String id;
+            String snowflake;
+            if (i % 2 == 0) {
+                id = new UUID(0x1eL, i).toString();
+                snowflake = snowflake(user);
+            } else {
+                id = uuid(user);
+                snowflake = Long.toString(200000000000000000L + i);
+            }
+            long set = System.nanoTime();
+            storage.setUser(snowflake, UUID.fromString(id));
+            setLatencies[i] = System.nanoTime() - set;
+            link(snowflake, id);
+        }
+        long setTime = System.nanoTime() - start;
+        int wrongWarm = check(storage);
+        start = System.nanoTime();
+        storage.close();
+        long flushTime = System.nanoTime() - start;
+
+        // a new instance has nothing cached, so every answer comes from the table
+        storage = new SqlUserStorage(source, config, json);
+        int wrongCold = check(storage);
+        int[] rows = {0};
+        storage.iterate((id, snowflake) -> rows[0]++);
+        storage.close();
+
+        // lookups: most go to a hot tenth of the players, the rest anywhere
+        storage = new SqlUserStorage(source, config, json);
+        Counter hits = (Counter) Metrics.getSeries("discordsync_storage_cache_total").get("result=\"hit\"");
+        Counter misses = (Counter) Metrics.getSeries("discordsync_storage_cache_total").get("result=\"miss\"");
+        long hitsBefore = hits.get();
+        long missesBefore = misses.get();
+        long[] latencies = new long[options.lookups];
+        AtomicInteger next = new AtomicInteger();
+        SqlUserStorage lookups = storage;
+        Thread[] threads = new Thread[options.threads];
+        start = System.nanoTime();
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom local = ThreadLocalRandom.current();
+                for (int i = next.getAndIncrement(); i < latencies.length; i = next.getAndIncrement()) {
+                    int user = local.nextInt(10) < 8 ? local.nextInt(Math.max(1, options.users / 10)) : local.nextInt(options.users);
+                    long lookup = System.nanoTime();
+                    if ((i & 1) == 0) {
+                        lookups.getSnowFlake(uuid(user));
+                    } else {
+                        lookups.getId(snowflake(user));
+                    }
+                    latencies[i] = System.nanoTime() - lookup;
+                }
+            }, "storagetest-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long lookupTime = System.nanoTime() - start;
+        storage.close();
+        long hitCount = hits.get() - hitsBefore;
+        long missCount = misses.get() - missesBefore;
+
+        Arrays.sort(setLatencies);
+        Arrays.sort(latencies);
+        System.out.printf("Database:   %s%n", options.db);
+        System.out.printf("Import:     %d of %d users in %.1fms%n", imported[0], options.users, importTime / 1e6);
+        System.out.printf("Links:      %d set in %.1fms (p50 %s, p99 %s), flushed in %.1fms%n",
+                options.links, setTime / 1e6, Stats.micros(setLatencies, 0.5), Stats.micros(setLatencies, 0.99), flushTime / 1e6);
+        System.out.printf("Check:      %d rows, %d expected, %d wrong answers from a warm cache, %d from a cold one%n",
+                rows[0], expectedById.size(), wrongWarm, wrongCold);
+        System.out.printf("Lookups:    %d on %d threads in %.1fms, %.0f/s (p50 %s, p99 %s, max %s)%n",
+                latencies.length, threads.length, lookupTime / 1e6, latencies.length / (lookupTime / 1e9),
+                Stats.micros(latencies, 0.5), Stats.micros(latencies, 0.99), Stats.micros(latencies, 1.0));
+        System.out.printf("Cache:      %d hits, %d misses, %.1f%% hit rate%n",
+                hitCount, missCount, 100D * hitCount / Math.max(1L, hitCount + missCount));
+    }
+
+    private int check(SqlUserStorage storage) {
+        int wrong = 0;
+        for (int i = 0; i < options.users; i++) {
+            String id = uuid(i);
+            String snowflake = snowflake(i);
+            wrong += storage.getSnowFlake(id).equals(expectedById.getOrDefault(id, "")) ? 0 : 1;
+            wrong += storage.getId(snowflake).equals(expectedBySnowflake.getOrDefault(snowflake, "")) ? 0 : 1;
+        }
+        for (Map.Entry<String, String> entry : expectedById.entrySet()) {
+            wrong += storage.getSnowFlake(entry.getKey()).equals(entry.getValue()) ? 0 : 1;
+            wrong += storage.getId(entry.getValue()).equals(entry.getKey()) ? 0 : 1;
+        }
+        return wrong;
+    }
+
+    private DataSource open(Path dir) {
+        if (options.db.equals("sqlite")) {
+            SQLiteConfig sqlite = new SQLiteConfig();
+            sqlite.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            sqlite.setBusyTimeout(5000);
+            SQLiteConnectionPoolDataSource source = new SQLiteConnectionPoolDataSource(sqlite);
+            source.setUrl("jdbc:sqlite:" + dir.resolve("users.db"));
+            return pool(JdbcConnectionPool.create(source));
+        }
+        return pool(JdbcConnectionPool.create("jdbc:h2:" + dir.resolve("users").toAbsolutePath(), "sa", ""));
+    }
+
+    // stands in for the pool that sponge's SqlService provides
+    private JdbcConnectionPool pool(JdbcConnectionPool pool) {
+        pool.setMaxConnections(Math.max(4, options.threads * 2));
+        return pool;
+    }
+
+    private void writeUsers(Path path) throws Exception {
+        for (int i = 0; i < options.users; i++) {
+            link(snowflake(i), uuid(i));
+        }
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8); JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            writer.name("uuid").beginObject();
+            for (Map.Entry<String, String> entry : expectedById.entrySet()) {
+                writer.name(entry.getKey()).value(entry.getValue());
+            }
+            writer.endObject();
+            writer.name("snowflake").beginObject();
+            for (Map.Entry<String, String> entry : expectedBySnowflake.entrySet()) {
+                writer.name(entry.getKey()).value(entry.getValue());
+            }
+            writer.endObject();
+            writer.endObject();
+        }
+    }
+
+    private void link(String snowflake, String id) {
+        String previousSnowflake = expectedById.put(id, snowflake);
+        if (previousSnowflake != null) {
+            expectedBySnowflake.remove(previousSnowflake, id);
+        }
+        String previousId = expectedBySnowflake.put(snowflake, id);
+        if (previousId != null && !previousId.equals(id)) {
+            expectedById.remove(previousId, snowflake);
+        }
+    }
+
+    private static String uuid(int user) {
+        return new UUID(0x5eedL, user).toString();
+    }
+
+    private static String snowflake(int user) {
+        return Long.toString(100000000000000000L + user);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new StorageTest(Options.parse(args)).run();
+        System.exit(0);
+    }
+
+    private static class Options {
+
+        private String db = "h2";
+        private int users = 100000;
+        private int links = 10000;
+        private int lookups = 200000;
+        private int threads = 4;
+        private int cacheSize = 8192;
+        private long ttlSeconds = 60L;
+
+        private static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--db":
+                        options.db = value;
+                        break;
+                    case "--users":
+                        options.users = Integer.parseInt(value);
+                        break;
+                    case "--links":
+                        options.links = Integer.parseInt(value);
+                        break;
+                    case "--lookups":
+                        options.lookups = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        options.threads = Integer.parseInt(value);
+                        break;
+                    case "--cache":
+                        options.cacheSize = Integer.parseInt(value);
+                        break;
+                    case "--ttl":
+                        options.ttlSeconds = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            return options;
+        }
+    }
+}
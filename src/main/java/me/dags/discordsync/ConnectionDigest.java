@@ -0,0 +1,72 @@
+package me.dags.discordsync;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Collects player joins and quits over a short window and hands them on together, so that a
+ * reconnect storm (eg after a restart or proxy failover) produces one message per window rather
+ * than one per player. A join and a quit of the same player within the window cancel out.
+ */
+public class ConnectionDigest {
+
+    private final long window;
+    private final ScheduledExecutorService scheduler;
+    private final BiConsumer<List<String>, List<String>> sink;
+
+    private final Set<String> joined = new LinkedHashSet<>();
+    private final Set<String> left = new LinkedHashSet<>();
+    private ScheduledFuture<?> pending = null;
+
+    /**
+     * @param sink receives the names of the players that joined and that left, in order
+     */
+    public ConnectionDigest(long window, ScheduledExecutorService scheduler, BiConsumer<List<String>, List<String>> sink) {
+        this.window = window;
+        this.scheduler = scheduler;
+        this.sink = sink;
+    }
+
+    public synchronized void join(String name) {
+        if (!left.remove(name)) {
+            joined.add(name);
+        }
+        schedule();
+    }
+
+    public synchronized void quit(String name) {
+        if (!joined.remove(name)) {
+            left.add(name);
+        }
+        schedule();
+    }
+
+    public void flush() {
+        List<String> joined, left;
+        synchronized (this) {
+            if (pending != null) {
+                pending.cancel(false);
+                pending = null;
+            }
+            joined = new ArrayList<>(this.joined);
+            left = new ArrayList<>(this.left);
+            this.joined.clear();
+            this.left.clear();
+        }
+        if (!joined.isEmpty() || !left.isEmpty()) {
+            sink.accept(joined, left);
+        }
+    }
+
+    private void schedule() {
+        if (pending == null) {
+            pending = scheduler.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+        }
+    }
+}
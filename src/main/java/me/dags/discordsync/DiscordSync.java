@@ -9,27 +9,62 @@ import me.dags.commandbus.annotation.Src;
 import me.dags.commandbus.fmt.Fmt;
 import me.dags.discordsync.config.Channels;
 import me.dags.discordsync.config.Config;
+import me.dags.discordsync.event.MessageEvent;
+import me.dags.discordsync.event.SyncEvent;
+import me.dags.discordsync.metrics.Counter;
+import me.dags.discordsync.metrics.Histogram;
+import me.dags.discordsync.metrics.Metrics;
+import me.dags.discordsync.metrics.MetricsServer;
+import me.dags.discordsync.relay.RelayServer;
+import me.dags.discordsync.relay.RelayService;
 import me.dags.discordsync.service.DiscoService;
+import me.dags.discordsync.service.HttpClients;
 import me.dags.discordsync.service.JDAService;
+import me.dags.discordsync.service.OfflineService;
 import me.dags.discordsync.storage.StorageHelper;
+import me.dags.discordsync.storage.UserStorage;
+import me.dags.discordsync.storage.WriteBehind;
+import me.dags.text.MUSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.command.CommandSource;
 import org.spongepowered.api.config.ConfigDir;
+import org.spongepowered.api.entity.living.player.Player;
 import org.spongepowered.api.event.Listener;
 import org.spongepowered.api.event.game.GameReloadEvent;
 import org.spongepowered.api.event.game.state.GameInitializationEvent;
+import org.spongepowered.api.event.game.state.GameStoppedServerEvent;
 import org.spongepowered.api.plugin.Plugin;
 
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 @Plugin(id = DiscordSync.ID, name = "DiscordSync", version = "3.0", description = "Discord chat integration")
 public class DiscordSync {
 
     public static final String ID = "discordsync";
 
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordSync");
+    private static final MUSpec SPEC = MUSpec.create();
+
     private final Path dir;
 
+    private Config config;
+    private Channels channels;
+    private DiscoService service;
     private EventHandler eventHandler;
+    private RoleSync roleSync;
+    private MetricsServer metricsServer;
+    private RelayServer relayServer;
+    private volatile UserStorage users;
+    private volatile LinkCodes links;
 
     @Inject
     public DiscordSync(@ConfigDir(sharedRoot = false) Path dir) {
@@ -47,20 +82,212 @@ public class DiscordSync {
         // load config files
         Config config = StorageHelper.load(dir.resolve("config.json"), Config.class, Config::new);
         Channels channels = StorageHelper.load(dir.resolve("channels.json"), Channels.class, Channels::new);
+        PluginHelper.getQueue().configure(config.tickQueue.capacity, config.tickQueue.budgetMicros);
+
+        Set<String> changes = this.config == null ? Collections.singleton("*") : StorageHelper.diff(this.config, config);
+        if (this.channels != null && !StorageHelper.diff(this.channels, channels).isEmpty()) {
+            changes.add("channels");
+        }
+        boolean relayClient = config.relay.mode.equalsIgnoreCase("client");
+        boolean restart = service == null || this.config == null || changes.contains("relay")
+                || (!relayClient && JDAService.requiresRestart(this.config, config));
+
+        if (metricsServer == null || changes.contains("*") || changes.contains("metrics")) {
+            if (metricsServer != null) {
+                metricsServer.stop();
+                metricsServer = null;
+            }
+            if (config.metrics.http) {
+                metricsServer = MetricsServer.start(config.metrics.host, config.metrics.port).orElse(null);
+            }
+        }
+
+        // reopen user storage
+        if (users == null || changes.contains("*") || changes.contains("storage")) {
+            if (users != null) {
+                users.close();
+            }
+            users = StorageHelper.createUserStorage(dir, config.storage);
+        }
 
-        // stop previous service
-        Sponge.getServiceManager().provide(DiscoService.class).ifPresent(DiscoService::shutdown);
+        if (links == null || changes.contains("*") || changes.contains("link")) {
+            if (links != null) {
+                links.close();
+            }
+            links = new LinkCodes(config.link);
+        }
 
-        // create new service and register
-        JDAService.create(config.discord.botUserToken).ifPresent(service -> {
-            EventHandler handler = new EventHandler(config, channels);
+        if (restart) {
+            // stop previous service
+            stopRelay(1000L);
+            if (service != null) {
+                service.shutdown();
+                service = null;
+            }
+            // create new service and register
+            Optional<DiscoService> next = relayClient
+                    ? RelayService.create(config)
+                    : JDAService.create(config, dir.resolve("spool"), this::isLinked);
+            // the old service is gone either way, so nothing may keep using it through the provider
+            service = next.orElse(null);
+            Sponge.getServiceManager().setProvider(this, DiscoService.class, next.orElseGet(OfflineService::new));
+            if (service != null && config.relay.mode.equalsIgnoreCase("server")) {
+                relayServer = RelayServer.start(service, config.relay).orElse(null);
+                if (relayServer != null) {
+                    Sponge.getEventManager().registerListeners(this, relayServer);
+                }
+            }
+        } else {
+            service.configure(config);
+        }
+
+        if (service == null) {
+            LOGGER.error("Discord service is unavailable until the next successful reload");
             if (eventHandler != null) {
                 Sponge.getEventManager().unregisterListeners(eventHandler);
+                eventHandler.close();
+                eventHandler = null;
             }
-            eventHandler = handler;
-            Sponge.getEventManager().registerListeners(this, eventHandler);
-            Sponge.getServiceManager().setProvider(this, DiscoService.class, service);
-        });
+            roleSync = null;
+            this.config = config;
+            this.channels = channels;
+            return;
+        }
+
+        // swap the handlers over, both on the main thread so no events fall between them
+        RoleSync roles = new RoleSync(config, users);
+        EventHandler handler = new EventHandler(config, channels, roles);
+        if (eventHandler != null) {
+            Sponge.getEventManager().unregisterListeners(eventHandler);
+            eventHandler.close();
+        }
+        eventHandler = handler;
+        roleSync = roles;
+        Sponge.getEventManager().registerListeners(this, eventHandler);
+        Consumer<MessageEvent> messages = handler::onDiscordMessage;
+        if (relayServer != null) {
+            messages = messages.andThen(relayServer::publish);
+        }
+        service.setMessageHandler(messages);
+        service.setLinkHandler(this::link);
+
+        if (!restart && (changes.contains("server") || changes.contains("storage") || changes.contains("roleSync"))) {
+            // a new connection triggers a sync by itself
+            PluginHelper.postEvent(new SyncEvent(config.discord.guildId));
+        }
+
+        LOGGER.info("Loaded config, changed: {}, reconnected: {}", changes, restart);
+        this.config = config;
+        this.channels = channels;
+    }
+
+    private void stopRelay(long timeout) {
+        if (relayServer != null) {
+            Sponge.getEventManager().unregisterListeners(relayServer);
+            relayServer.stop(timeout);
+            relayServer = null;
+        }
+    }
+
+    // called on the gateway thread for member events, so it mustn't wait on a database
+    private boolean isLinked(String snowflake) {
+        UserStorage storage = users;
+        return storage != null && !storage.getCachedId(snowflake).isEmpty();
+    }
+
+    // called on the gateway thread when a discord user sends the bot a link code
+    private String link(String snowflake, String code) {
+        LinkCodes codes = links;
+        UserStorage storage = users;
+        if (codes == null || storage == null) {
+            return null;
+        }
+        if (storage.isReadOnly()) {
+            return "Account linking is unavailable right now, try again later";
+        }
+
+        LinkCodes.Result result = codes.redeem(snowflake, code);
+        switch (result.getStatus()) {
+            case LINKED:
+                storage.setUser(snowflake, result.getPlayer());
+                LOGGER.info("Linked discord user {} to {}", snowflake, result.getName());
+                UUID player = result.getPlayer();
+                PluginHelper.sync(() -> Sponge.getServer().getPlayer(player)
+                        .ifPresent(p -> p.sendMessage(SPEC.render(config.prompts.linked))));
+                return "Linked to " + result.getName();
+            case RATE_LIMITED:
+                return "Too many attempts, try again later";
+            default:
+                return "That code is not valid, use /discord auth in game to get a new one";
+        }
+    }
+
+    @Listener
+    public void onStopped(GameStoppedServerEvent event) {
+        // deliver the server stopping message (and anything else queued) before the jvm exits
+        if (eventHandler != null) {
+            Sponge.getEventManager().unregisterListeners(eventHandler);
+            eventHandler.close(config.webhooks.shutdownTimeoutMs);
+            eventHandler = null;
+        }
+        stopRelay(config.webhooks.shutdownTimeoutMs);
+        if (service != null) {
+            service.shutdown();
+            service = null;
+        }
+        HttpClients.shutdown();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        if (links != null) {
+            links.close();
+        }
+        if (users != null) {
+            users.close();
+        }
+        WriteBehind.flush();
+    }
+
+    @Permission
+    @Command("discord auth")
+    public void authCommand(@Src Player player) {
+        LinkCodes codes = links;
+        UserStorage storage = users;
+        if (codes == null || storage == null) {
+            Fmt.error("The discord service is not running").tell(player);
+            return;
+        }
+
+        if (storage.isReadOnly()) {
+            Fmt.error("Account linking is unavailable while the user database can't be reached").tell(player);
+            return;
+        }
+
+        // codes are redeemed by the node connected to discord, one issued here could never be used
+        Config config = this.config;
+        if (config.relay.mode.equalsIgnoreCase("client")) {
+            Fmt.error("Accounts are linked on the server running the relay (")
+                    .stress(config.relay.host + ":" + config.relay.port)
+                    .error("), use /discord auth there")
+                    .tell(player);
+            return;
+        }
+
+        if (storage.getUserSnowflake(player.getUniqueId()).isPresent()) {
+            Fmt.warn("Your Discord account is already linked").tell(player);
+            return;
+        }
+
+        Optional<String> code = codes.issue(player.getUniqueId(), player.getName());
+        if (!code.isPresent()) {
+            Fmt.error("You have requested too many codes, try again later").tell(player);
+            return;
+        }
+
+        player.sendMessage(SPEC.template(config.prompts.code)
+                .with("code", code.get())
+                .with("minutes", codes.getExpiryMinutes())
+                .render());
     }
 
     @Permission
@@ -70,6 +297,68 @@ public class DiscordSync {
         onReload(null);
     }
 
+    @Permission
+    @Command("discord roles sync")
+    public void roleSyncCommand(@Src CommandSource src) {
+        runRoleSync(src, false);
+    }
+
+    @Permission
+    @Command("discord roles report")
+    public void roleReportCommand(@Src CommandSource src) {
+        runRoleSync(src, true);
+    }
+
+    @Permission
+    @Command("discord queue")
+    public void queueCommand(@Src CommandSource src) {
+        TickQueue queue = PluginHelper.getQueue();
+        Fmt.info("Main thread queue: ").stress(queue.getDepth())
+                .info(" pending, ").stress(queue.getCompleted())
+                .info(" run, ").stress(queue.getCoalesced())
+                .info(" broadcasts merged, ").stress(queue.getShed())
+                .info(" shed")
+                .newLine().info("Drain time: ").stress(micros(queue.getLastDrainNanos()))
+                .info(" last, ").stress(micros(queue.getMaxDrainNanos()))
+                .info(" max")
+                .tell(src);
+
+        Sponge.getServiceManager().provide(DiscoService.class).ifPresent(service -> Fmt.info("Webhook queue: ")
+                .stress(service.getQueueDepth())
+                .info(" pending, waiting ").stress(service.getQueueWait() + "ms")
+                .tell(src));
+    }
+
+    @Permission
+    @Command("discord stats")
+    public void statsCommand(@Src CommandSource src) {
+        Histogram latency = Metrics.WEBHOOK_LATENCY;
+        Fmt.info("Webhooks: ").stress(Metrics.WEBHOOK_SENT.get())
+                .info(" sent, ").stress(Metrics.WEBHOOK_FAILED.get())
+                .info(" failed, ").stress(Metrics.WEBHOOK_RATE_LIMITED.get())
+                .info(" rate limited")
+                .newLine().info("Latency: ").stress(millis(latency.getPercentile(0.5)))
+                .info(" p50, ").stress(millis(latency.getPercentile(0.99)))
+                .info(" p99 (").stress(latency.getCount()).info(" messages)")
+                .tell(src);
+
+        for (Map.Entry<String, Object> entry : Metrics.getSeries("discordsync_inbound_messages_total").entrySet()) {
+            Fmt.info("Inbound ").stress(entry.getKey())
+                    .info(": ").stress(((Counter) entry.getValue()).get())
+                    .tell(src);
+        }
+
+        for (Map.Entry<String, Object> entry : Metrics.getSeries("discordsync_storage_op_seconds").entrySet()) {
+            Histogram op = (Histogram) entry.getValue();
+            Fmt.info("Storage ").stress(entry.getKey())
+                    .info(": ").stress(op.getCount())
+                    .info(" ops, p99 ").stress(micros(op.getPercentile(0.99)))
+                    .tell(src);
+        }
+
+        queueCommand(src);
+    }
+
     @Permission
     @Command("discord test <message>")
     public void testCommand(@Src CommandSource src, @Join String message) {
@@ -78,4 +367,49 @@ public class DiscordSync {
             eventHandler.sendTestMessage(src, message);
         }
     }
+
+    private void runRoleSync(CommandSource src, boolean dryRun) {
+        RoleSync roles = roleSync;
+        Optional<DiscoService> service = Sponge.getServiceManager().provide(DiscoService.class);
+        if (roles == null || !service.isPresent()) {
+            Fmt.error("The discord service is not running").tell(src);
+            return;
+        }
+
+        if (!config.roleSync.enabled) {
+            Fmt.warn("Role sync is disabled, set roleSync.enabled in the config to use it").tell(src);
+            return;
+        }
+
+        Fmt.info("Synchronising discord roles...").tell(src);
+        boolean started = roles.sync(service.get(), dryRun, report -> {
+            if (report.getError().isPresent()) {
+                Fmt.error("Role sync failed: ").stress(report.getError().get()).tell(src);
+                return;
+            }
+            Fmt.info("Role sync ")
+                .stress(report.isDryRun() ? "(dry run)" : "complete")
+                .newLine().info("Members with roles: ").stress(report.getMembers())
+                .info(", linked users: ").stress(report.getLinked())
+                .newLine().info("Groups added: ").stress(report.getAdded())
+                .info(", removed: ").stress(report.getRemoved())
+                .newLine().info("Fetch: ").stress(report.getFetchMillis() + "ms")
+                .info(", diff: ").stress(report.getDiffMillis() + "ms")
+                .info(", apply: ").stress(report.getApplyMillis() + "ms")
+                .info(" over ").stress(report.getTicks()).info(" ticks")
+                .tell(src);
+        });
+
+        if (!started) {
+            Fmt.warn("A role sync is already running").tell(src);
+        }
+    }
+
+    private static String millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+    }
+
+    private static String micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos) + "\u00b5s";
+    }
 }
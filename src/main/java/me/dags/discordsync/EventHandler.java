@@ -5,6 +5,9 @@ import me.dags.discordsync.config.Config;
 import me.dags.discordsync.config.DiscordChannel;
 import me.dags.discordsync.event.MessageEvent;
 import me.dags.discordsync.event.RoleEvent;
+import me.dags.discordsync.event.SyncEvent;
+import me.dags.discordsync.metrics.Counter;
+import me.dags.discordsync.metrics.Metrics;
 import me.dags.discordsync.service.DiscoService;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.command.CommandSource;
@@ -18,124 +21,235 @@ import org.spongepowered.api.event.network.ClientConnectionEvent;
 import org.spongepowered.api.text.Text;
 import org.spongepowered.api.text.channel.MessageChannel;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 public class EventHandler {
 
     private final String guildId;
     private final String serverName;
     private final String serverAvatar;
-    private final DiscordChannel.Format format;
-    private final List<DiscordChannel> channels;
+    private final Map<String, DiscordChannel> inbound;
+    private final Map<String, Counter> received;
+    private final List<DiscordChannel> outbound;
+    private final PermissionCache permissions;
+    private final RoleSync roles;
+    private final int digestNames;
+    private final ConnectionDigest digest;
+    private final ScheduledExecutorService fanout = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "discordsync-fanout");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    public EventHandler(Config config, Channels channels) {
+    public EventHandler(Config config, Channels channels, RoleSync roles) {
+        this.roles = roles;
+        this.permissions = new PermissionCache(config.server.permissionCacheMs);
         this.guildId = config.discord.guildId;
         this.serverName = config.server.name;
         this.serverAvatar = config.server.avatar;
-        this.format = new DiscordChannel.Format(channels.main.discord);
-        this.channels = Collections.singletonList(new DiscordChannel(
-                channels.main.channelId,
-                channels.main.minecraft.message,
-                channels.main.webhook
-        ));
+        this.digestNames = config.server.connectionDigestNames;
+        this.digest = config.server.connectionDigestMs > 0 ? new ConnectionDigest(config.server.connectionDigestMs, fanout, this::publishDigest) : null;
+
+        Map<String, DiscordChannel> inbound = new HashMap<>();
+        Map<String, Counter> received = new HashMap<>();
+        List<DiscordChannel> outbound = new ArrayList<>();
+        for (Channels.Channel entry : channels.getAll()) {
+            DiscordChannel channel = new DiscordChannel(entry);
+            // main is always present, so an unconfigured (blank) side is skipped rather than used
+            if (channel.isInbound() && !channel.getId().trim().isEmpty()) {
+                inbound.put(channel.getId(), channel);
+                received.put(channel.getId(), Metrics.counter(
+                        "discordsync_inbound_messages_total",
+                        "Discord messages relayed to the server",
+                        "channel=\"" + channel.getId() + "\""
+                ));
+            }
+            if (channel.isOutbound() && !channel.getWebhook().trim().isEmpty()) {
+                outbound.add(channel);
+            }
+        }
+        this.inbound = inbound;
+        this.received = received;
+        this.outbound = outbound;
     }
 
-    @Listener
+    public void close() {
+        if (digest != null) {
+            digest.flush();
+        }
+        // let messages that are already queued go out
+        fanout.shutdown();
+    }
+
+    /**
+     * Closes the handler and waits for messages that are already queued to reach the service.
+     */
+    public void close(long timeout) {
+        close();
+        try {
+            fanout.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // called on the service thread, only the broadcast itself is passed to the main thread
     public void onDiscordMessage(MessageEvent event) {
         if (!event.getGuild().equals(guildId)) {
             return;
         }
 
-        for (DiscordChannel channel : channels) {
-            if (channel.getId().equals(event.getChannel())) {
-                Text text = channel.getTemplate()
-                        .with("name", event.getAuthor())
-                        .with("message", event.getContent())
-                        .render();
-
-                PluginHelper.sync(() -> Sponge.getServer().getBroadcastChannel().send(text));
-                return;
-            }
+        DiscordChannel channel = inbound.get(event.getChannel());
+        if (channel == null) {
+            return;
         }
+
+        received.get(channel.getId()).increment();
+
+        Object message = event.getMarkup() == null ? event.getContent() : DiscordChannel.render(event.getMarkup());
+        Text text = channel.getTemplate()
+                .with("name", event.getAuthor())
+                .with("message", message)
+                .render();
+
+        PluginHelper.broadcast(channel.getMinecraftChannel(), text);
     }
 
     @Listener
     public void onDiscordRoleAdd(RoleEvent.Add event) {
-
+        roles.apply(event.getSubjectSnowflake(), event.getRole(), true);
     }
 
     @Listener
     public void onDiscordRoleRemove(RoleEvent.Remove event) {
-
+        roles.apply(event.getSubjectSnowflake(), event.getRole(), false);
     }
 
     @Listener
-    public void onServerChat(MessageChannelEvent.Chat event, @Root Player player) {
+    public void onDiscordSync(SyncEvent event) {
+        if (!event.getGuild().equals(guildId)) {
+            return;
+        }
         Sponge.getServiceManager().provide(DiscoService.class).ifPresent(service -> {
-            if (hasPublicChannel(event)) {
-                String name = player.getName();
-                String title = format.getTitle(name, serverName);
-                String avatar = format.getAvatar(name);
-                String content = getContent(player, event);
-                MessageEvent message = new MessageEvent(guildId, title, avatar, content);
-                for (DiscordChannel channel : channels) {
-                    service.sendMessage(channel, message);
-                }
-            }
+            roles.sync(service, roles.isDryRun(), report -> {});
         });
     }
 
+    @Listener
+    public void onServerChat(MessageChannelEvent.Chat event, @Root Player player) {
+        if (hasPublicChannel(event)) {
+            String name = player.getName();
+            String content = getContent(player, event, permissions);
+            publish((format, time) -> new MessageEvent(guildId, format.getTitle(name, serverName), format.getAvatar(name), content, time));
+        }
+    }
+
     @Listener
     public void onServerJoin(ClientConnectionEvent.Join event, @Root Player player) {
-        Sponge.getServiceManager().provide(DiscoService.class).ifPresent(service -> {
-            String title = format.getTitle(player.getName(), serverName);
-            String content = format.getConnect(player.getName());
-            MessageEvent message = new MessageEvent(guildId, title, serverAvatar, content);
-            for (DiscordChannel channel : channels) {
-                service.sendMessage(channel, message);
-            }
-        });
+        permissions.invalidate(player.getUniqueId());
+        if (digest != null) {
+            digest.join(player.getName());
+            return;
+        }
+        String name = player.getName();
+        publish((format, time) -> new MessageEvent(guildId, format.getTitle(name, serverName), serverAvatar, format.getConnect(name), time));
     }
 
     @Listener
     public void onServerQuit(ClientConnectionEvent.Disconnect event, @Root Player player) {
-        Sponge.getServiceManager().provide(DiscoService.class).ifPresent(service -> {
-            String title = format.getTitle(player.getName(), serverName);
-            String content = format.getDisconnect(player.getName());
-            MessageEvent message = new MessageEvent(guildId, title, serverAvatar, content);
-            for (DiscordChannel channel : channels) {
-                service.sendMessage(channel, message);
-            }
-        });
+        permissions.invalidate(player.getUniqueId());
+        if (digest != null) {
+            digest.quit(player.getName());
+            return;
+        }
+        String name = player.getName();
+        publish((format, time) -> new MessageEvent(guildId, format.getTitle(name, serverName), serverAvatar, format.getDisconnect(name), time));
     }
 
     @Listener
     public void onServerStared(GameStartedServerEvent event) {
-        Sponge.getServiceManager().provide(DiscoService.class).ifPresent(service -> {
-            MessageEvent message = new MessageEvent(guildId, serverName, serverAvatar, format.getStart());
-            for (DiscordChannel channel : channels) {
-                service.sendMessage(channel, message);
-            }
-        });
+        publish((format, time) -> new MessageEvent(guildId, serverName, serverAvatar, format.getStart(), time));
     }
 
     @Listener
     public void onServerStopping(GameStoppingServerEvent event) {
-        Sponge.getServiceManager().provide(DiscoService.class).ifPresent(service -> {
-            MessageEvent message = new MessageEvent(guildId, serverName, serverAvatar, format.getStop());
-            for (DiscordChannel channel : channels) {
-                service.sendMessage(channel, message);
-            }
-        });
+        publish((format, time) -> new MessageEvent(guildId, serverName, serverAvatar, format.getStop(), time));
     }
 
     public void sendTestMessage(CommandSource source, String message) {
+        if (outbound.isEmpty()) {
+            return;
+        }
         Sponge.getServiceManager().provide(DiscoService.class).ifPresent(service -> {
+            DiscordChannel channel = outbound.get(0);
+            DiscordChannel.Format format = channel.getFormat();
             String title = format.getTitle(source.getName(), serverName);
             String content = format.getMessage(source.getName(), message);
             MessageEvent event = new MessageEvent(guildId, title, serverAvatar, content);
-            service.sendMessage(channels.get(0), event);
+            service.sendMessage(channel, event);
+        });
+    }
+
+    private void publishDigest(List<String> joined, List<String> left) {
+        if (joined.size() == 1) {
+            String name = joined.get(0);
+            publish((format, time) -> new MessageEvent(guildId, format.getTitle(name, serverName), serverAvatar, format.getConnect(name), time));
+        } else if (joined.size() > 1) {
+            int count = joined.size();
+            String names = getNames(joined);
+            publish((format, time) -> new MessageEvent(guildId, serverName, serverAvatar, format.getConnectDigest(count, names), time));
+        }
+
+        if (left.size() == 1) {
+            String name = left.get(0);
+            publish((format, time) -> new MessageEvent(guildId, format.getTitle(name, serverName), serverAvatar, format.getDisconnect(name), time));
+        } else if (left.size() > 1) {
+            int count = left.size();
+            String names = getNames(left);
+            publish((format, time) -> new MessageEvent(guildId, serverName, serverAvatar, format.getDisconnectDigest(count, names), time));
+        }
+    }
+
+    private String getNames(List<String> names) {
+        int shown = Math.min(names.size(), digestNames);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < shown; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(names.get(i));
+        }
+        if (shown < names.size()) {
+            sb.append(" and ").append(names.size() - shown).append(" more");
+        }
+        return sb.toString();
+    }
+
+    // formats and hands the message to each outbound channel off the main thread, in order
+    private void publish(Message message) {
+        if (outbound.isEmpty()) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        Sponge.getServiceManager().provide(DiscoService.class).ifPresent(service -> {
+            Runnable task = () -> {
+                for (DiscordChannel channel : outbound) {
+                    service.sendMessage(channel, message.create(channel.getFormat(), time));
+                }
+            };
+            try {
+                fanout.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
         });
     }
 
@@ -150,4 +264,15 @@ public class EventHandler {
     public static String getContent(CommandSource source, MessageChannelEvent.Chat chat) {
         return MessageProcessor.processContent(source::hasPermission, chat.getRawMessage().toPlain());
     }
+
+    public static String getContent(Player player, MessageChannelEvent.Chat chat, PermissionCache cache) {
+        Predicate<String> source = permission -> cache.hasPermission(player.getUniqueId(), player, permission);
+        return MessageProcessor.processContent(source, chat.getRawMessage().toPlain());
+    }
+
+    private interface Message {
+
+        // time is when the event happened on the server, so that delivery latency can be measured from it
+        MessageEvent create(DiscordChannel.Format format, long time);
+    }
 }
@@ -0,0 +1,211 @@
+package me.dags.discordsync;
+
+import me.dags.discordsync.config.Config;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outstanding account-link codes. A player asks for a short code in game and sends it to the
+ * bot from discord, which proves that they own both accounts.
+ *
+ * Codes, and the windows used to rate limit players requesting codes and discord users
+ * redeeming them, are expired by a {@link TimingWheel} so that nothing is ever scanned. Codes are
+ * also checked against their deadline when redeemed, so the wheel's resolution doesn't matter.
+ */
+public class LinkCodes {
+
+    // no 0/O or 1/I, so codes can be read back without ambiguity
+    private static final char[] ALPHABET = "23456789ABCDEFGHJKLMNPQRSTUVWXYZ".toCharArray();
+    private static final int SLOTS = 64;
+    private static final long TICK = 1000L;
+
+    private final int length;
+    private final long expiry;
+    private final long window;
+    private final int maxCodes;
+    private final int maxAttempts;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Code> codes = new HashMap<>();
+    private final Map<UUID, Code> players = new HashMap<>();
+    private final Map<Object, Window> windows = new HashMap<>();
+    private final TimingWheel<Object> wheel;
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "discordsync-link-codes");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LinkCodes(Config.Link config) {
+        this.length = Math.max(4, config.codeLength);
+        this.expiry = TimeUnit.SECONDS.toMillis(config.expirySeconds);
+        this.window = TimeUnit.MINUTES.toMillis(config.rateLimitMinutes);
+        this.maxCodes = config.maxCodesPerPlayer;
+        this.maxAttempts = config.maxAttemptsPerUser;
+        this.wheel = new TimingWheel<>(SLOTS, TICK, System.currentTimeMillis());
+        ticker.scheduleAtFixedRate(this::tick, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    public long getExpiryMinutes() {
+        return TimeUnit.MILLISECONDS.toMinutes(expiry);
+    }
+
+    /**
+     * Creates a code for the player, replacing any they already had.
+     *
+     * @return empty if the player has asked for too many codes recently
+     */
+    public synchronized Optional<String> issue(UUID player, String name) {
+        long now = System.currentTimeMillis();
+        if (!acquire(player, maxCodes, now)) {
+            return Optional.empty();
+        }
+
+        Code previous = players.remove(player);
+        if (previous != null) {
+            remove(previous);
+        }
+
+        String value;
+        do {
+            value = generate();
+        } while (codes.containsKey(value));
+
+        Code code = new Code(value, player, name, now + expiry);
+        code.timeout = wheel.schedule(code, expiry);
+        codes.put(value, code);
+        players.put(player, code);
+        return Optional.of(value);
+    }
+
+    /**
+     * Attempts to redeem a code on behalf of a discord user. Every attempt counts towards the
+     * user's rate limit, successful or not.
+     */
+    public synchronized Result redeem(String snowflake, String input) {
+        long now = System.currentTimeMillis();
+        if (!acquire(snowflake, maxAttempts, now)) {
+            return new Result(Status.RATE_LIMITED, null, null);
+        }
+
+        Code code = codes.get(input.trim().toUpperCase());
+        if (code == null || code.deadline < now) {
+            return new Result(Status.INVALID, null, null);
+        }
+
+        remove(code);
+        players.remove(code.player);
+        return new Result(Status.LINKED, code.player, code.name);
+    }
+
+    public synchronized int size() {
+        return codes.size();
+    }
+
+    public void close() {
+        ticker.shutdownNow();
+    }
+
+    private synchronized void tick() {
+        wheel.advance(System.currentTimeMillis(), this::expire);
+    }
+
+    private void expire(Object value) {
+        if (value instanceof Code) {
+            Code code = (Code) value;
+            codes.remove(code.value);
+            players.remove(code.player, code);
+        } else {
+            Window window = (Window) value;
+            windows.remove(window.key, window);
+        }
+    }
+
+    private void remove(Code code) {
+        codes.remove(code.value);
+        wheel.cancel(code.timeout);
+    }
+
+    // fixed window counter per key, dropped by the wheel once the window has passed
+    private boolean acquire(Object key, int limit, long now) {
+        Window current = windows.get(key);
+        if (current == null) {
+            current = new Window(key);
+            windows.put(key, current);
+            wheel.schedule(current, window);
+        }
+        return ++current.count <= limit;
+    }
+
+    private String generate() {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+        return new String(chars);
+    }
+
+    private static class Code {
+
+        private final String value;
+        private final UUID player;
+        private final String name;
+        private final long deadline;
+        private TimingWheel.Timeout<Object> timeout;
+
+        private Code(String value, UUID player, String name, long deadline) {
+            this.value = value;
+            this.player = player;
+            this.name = name;
+            this.deadline = deadline;
+        }
+    }
+
+    private static class Window {
+
+        private final Object key;
+        private int count = 0;
+
+        private Window(Object key) {
+            this.key = key;
+        }
+    }
+
+    public enum Status {
+        LINKED,
+        INVALID,
+        RATE_LIMITED,
+    }
+
+    public static class Result {
+
+        private final Status status;
+        private final UUID player;
+        private final String name;
+
+        private Result(Status status, UUID player, String name) {
+            this.status = status;
+            this.player = player;
+            this.name = name;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public UUID getPlayer() {
+            return player;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+}
@@ -1,58 +1,90 @@
 package me.dags.discordsync;
 
 import java.util.function.Predicate;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class MessageProcessor {
 
-    private static final Pattern MENTION = Pattern.compile("@([^ ]+)");
+    public static final String MENTION_EVERYONE = DiscordSync.ID + ".mention.everyone";
+    public static final String MENTION_HERE = DiscordSync.ID + ".mention.here";
+    public static final String MENTION_USER = DiscordSync.ID + ".mention.user";
 
-    private static final MentionType[] MENTION_TYPES = {
-            new MentionType("everyone"),
-            new MentionType("here"),
-            new MentionType("user", true),
-    };
+    private static final int EVERYONE = 1;
+    private static final int HERE = 2;
+    private static final int USER = 4;
 
+    /**
+     * Strips the '@' from any mention ('@' followed by one or more non-space chars) that the
+     * source is not permitted to use. Mentions of everyone/here require both their own and the
+     * user mention permission. Returns the input instance when nothing needs stripping.
+     */
     public static String processContent(Predicate<String> source, String content) {
-        StringBuffer sb = new StringBuffer();
-        Matcher matcher = MessageProcessor.MENTION.matcher(content);
-
-        while (matcher.find()) {
-            String group = matcher.group(matcher.groupCount());
-            for (MentionType mentionType : MENTION_TYPES) {
-                if (mentionType.matches(group) && !mentionType.isPermitted(source)) {
-                    matcher.appendReplacement(sb, group);
-                    break;
-                }
-            }
+        int at = content.indexOf('@');
+        if (at < 0) {
+            return content;
         }
 
-        return matcher.appendTail(sb).toString();
-    }
+        StringBuilder sb = null;
+        int length = content.length();
+        int start = 0;
+        int known = 0;
+        int permitted = 0;
 
-    private static class MentionType {
+        while (at >= 0) {
+            int end = at + 1;
+            while (end < length && content.charAt(end) != ' ') {
+                end++;
+            }
 
-        private final boolean any;
-        private final String type;
-        private final String permission;
+            if (end > at + 1) {
+                int type = USER | typeOf(content, at + 1, end);
+                if ((type & ~known) != 0) {
+                    permitted |= resolve(source, type & ~known);
+                    known |= type;
+                }
+                if ((permitted & type) != type) {
+                    if (sb == null) {
+                        sb = new StringBuilder(length);
+                    }
+                    sb.append(content, start, at);
+                    start = at + 1;
+                }
+            }
 
-        private MentionType(String type) {
-            this(type, false);
+            at = content.indexOf('@', end);
         }
 
-        private MentionType(String type, boolean any) {
-            this.any = any;
-            this.type = type;
-            this.permission = DiscordSync.ID + ".mention." + type;
+        if (sb == null) {
+            return content;
         }
 
-        private boolean matches(String text) {
-            return any || text.equalsIgnoreCase(type);
+        return sb.append(content, start, length).toString();
+    }
+
+    private static int typeOf(String content, int start, int end) {
+        int length = end - start;
+        if (length == 8 && content.regionMatches(true, start, "everyone", 0, 8)) {
+            return EVERYONE;
         }
+        if (length == 4 && content.regionMatches(true, start, "here", 0, 4)) {
+            return HERE;
+        }
+        return 0;
+    }
 
-        private boolean isPermitted(Predicate<String> source) {
-            return source != null && source.test(permission);
+    private static int resolve(Predicate<String> source, int types) {
+        if (source == null) {
+            return 0;
+        }
+        int permitted = 0;
+        if ((types & EVERYONE) != 0 && source.test(MENTION_EVERYONE)) {
+            permitted |= EVERYONE;
+        }
+        if ((types & HERE) != 0 && source.test(MENTION_HERE)) {
+            permitted |= HERE;
+        }
+        if ((types & USER) != 0 && source.test(MENTION_USER)) {
+            permitted |= USER;
         }
+        return permitted;
     }
 }
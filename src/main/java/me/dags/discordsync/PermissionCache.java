@@ -0,0 +1,57 @@
+package me.dags.discordsync;
+
+import org.spongepowered.api.service.permission.Subject;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches permission checks per player. Sponge does not notify plugins when permissions change,
+ * so entries expire after a short ttl, and are dropped when the player joins or leaves and when
+ * the plugin is reloaded.
+ */
+public class PermissionCache {
+
+    private final long ttl;
+    private final Map<UUID, Entry> entries = new ConcurrentHashMap<>();
+
+    public PermissionCache(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public boolean hasPermission(UUID id, Subject subject, String permission) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(id);
+        if (entry == null || entry.expires < now) {
+            entry = new Entry(now + ttl);
+            entries.put(id, entry);
+        }
+
+        Boolean value = entry.permissions.get(permission);
+        if (value == null) {
+            value = subject.hasPermission(permission);
+            entry.permissions.put(permission, value);
+        }
+
+        return value;
+    }
+
+    public void invalidate(UUID id) {
+        entries.remove(id);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private static class Entry {
+
+        private final long expires;
+        private final Map<String, Boolean> permissions = new ConcurrentHashMap<>(4);
+
+        private Entry(long expires) {
+            this.expires = expires;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package me.dags.discordsync;
 
+import me.dags.discordsync.metrics.Metrics;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.event.Event;
 import org.spongepowered.api.event.cause.Cause;
@@ -7,6 +8,9 @@ import org.spongepowered.api.event.cause.EventContext;
 import org.spongepowered.api.event.cause.EventContextKeys;
 import org.spongepowered.api.plugin.PluginContainer;
 import org.spongepowered.api.scheduler.SpongeExecutorService;
+import org.spongepowered.api.scheduler.Task;
+import org.spongepowered.api.text.Text;
+import org.spongepowered.api.text.channel.MessageChannel;
 
 import java.util.function.Consumer;
 import java.util.function.Supplier;
@@ -22,6 +26,8 @@ public class PluginHelper {
     private final Object plugin;
     private SpongeExecutorService sync;
     private SpongeExecutorService async;
+    private TickQueue queue;
+    private Task drainTask;
 
     private PluginHelper() {
         PluginContainer container = Sponge.getPluginManager().getPlugin(DiscordSync.ID).orElseThrow(IllegalStateException::new);
@@ -51,6 +57,10 @@ public class PluginHelper {
         });
     }
 
+    public static Object getPlugin() {
+        return instance.plugin;
+    }
+
     public static SpongeExecutorService getAsync() {
         return getInstance().getAsyncService();
     }
@@ -81,6 +91,33 @@ public class PluginHelper {
         return sync;
     }
 
+    public static TickQueue getQueue() {
+        return getInstance().getTickQueue();
+    }
+
+    private synchronized TickQueue getTickQueue() {
+        if (queue == null) {
+            queue = new TickQueue(4096, 1000L);
+            TickQueue q = queue;
+            Metrics.gauge("discordsync_tick_queue_depth", "Main thread tasks waiting to run", q::getDepth);
+            Metrics.counter("discordsync_tick_tasks_total", "Main thread tasks run", q::getCompleted);
+            Metrics.counter("discordsync_tick_tasks_coalesced_total", "Broadcasts merged into a previous one", q::getCoalesced);
+            Metrics.counter("discordsync_tick_broadcasts_shed_total", "Broadcasts dropped while the queue was full", q::getShed);
+        }
+        if (drainTask == null) {
+            drainTask = Sponge.getScheduler().createTaskBuilder()
+                    .name("discordsync-tick-queue")
+                    .intervalTicks(1)
+                    .execute(queue::drain)
+                    .submit(plugin);
+        }
+        return queue;
+    }
+
+    public static void broadcast(MessageChannel channel, Text text) {
+        getQueue().broadcast(channel, text);
+    }
+
     public static void postEvent(Event event) {
         sync(() -> Sponge.getEventManager().post(event));
     }
@@ -90,6 +127,10 @@ public class PluginHelper {
     }
 
     private synchronized void shutdownServices() {
+        if (drainTask != null) {
+            drainTask.cancel();
+            drainTask = null;
+        }
         if (async != null) {
             async.shutdown();
         }
@@ -99,6 +140,6 @@ public class PluginHelper {
     }
 
     public static void sync(Runnable runnable) {
-        getSync().submit(runnable);
+        getQueue().submit(runnable);
     }
 }
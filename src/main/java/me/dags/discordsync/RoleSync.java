@@ -0,0 +1,366 @@
+package me.dags.discordsync;
+
+import me.dags.discordsync.config.Config;
+import me.dags.discordsync.service.DiscoService;
+import me.dags.discordsync.storage.UserStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.service.permission.PermissionService;
+import org.spongepowered.api.service.permission.Subject;
+import org.spongepowered.api.service.permission.SubjectCollection;
+import org.spongepowered.api.service.permission.SubjectData;
+import org.spongepowered.api.service.permission.SubjectReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Mirrors the configured discord roles of linked users onto permission groups of the same name.
+ *
+ * A full pass fetches the guild members holding any of the roles and compares them against the
+ * group memberships of every linked user. Both of those happen off the main thread; the resulting
+ * changes are then applied on the main thread, a limited amount of time per tick, so that large
+ * guilds don't stall the server. Role changes made while connected are applied as they happen.
+ *
+ * Only groups named in the config are ever added or removed.
+ */
+public class RoleSync {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordSync");
+    private static final int LOAD_BATCH = 100;
+
+    private final String guildId;
+    private final Set<String> roles;
+    private final boolean dryRun;
+    private final long tickBudget;
+    private final UserStorage users;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    // each role change is queued only after the previous one, so they are applied in order
+    private CompletableFuture<Void> changes = CompletableFuture.completedFuture(null);
+
+    public RoleSync(Config config, UserStorage users) {
+        this.guildId = config.discord.guildId;
+        this.roles = new HashSet<>();
+        if (config.roleSync.enabled) {
+            for (String role : config.server.roles) {
+                roles.add(role.toLowerCase());
+            }
+        }
+        this.dryRun = config.roleSync.dryRun;
+        this.tickBudget = TimeUnit.MILLISECONDS.toNanos(config.roleSync.tickBudgetMs);
+        this.users = users;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * Applies a single role change reported by discord. The user is looked up off the main thread
+     * (the storage may have to query a database) and only the group change itself is made on it.
+     */
+    public void apply(String snowflake, String role, boolean add) {
+        if (!roles.contains(role)) {
+            return;
+        }
+
+        Optional<PermissionService> permissions = Sponge.getServiceManager().provide(PermissionService.class);
+        if (!permissions.isPresent()) {
+            return;
+        }
+
+        PermissionService service = permissions.get();
+        changes = changes.thenComposeAsync(v -> {
+            String id = users.getId(snowflake);
+            if (id.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            if (dryRun) {
+                LOGGER.info("Role sync (dry run): {} {} group {}", add ? "add" : "remove", id, role);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            SubjectReference group = service.getGroupSubjects().newSubjectReference(role);
+            return service.getUserSubjects().loadSubject(id).thenAccept(subject -> {
+                PluginHelper.sync(() -> new Change(subject, group, add).apply());
+            });
+        }, PluginHelper.getAsync()).exceptionally(e -> {
+            LOGGER.error("Error applying discord role change for " + snowflake, e);
+            return null;
+        });
+    }
+
+    /**
+     * Starts a full pass unless one is already running. The callback receives the report on the
+     * main thread once the pass has completed or failed.
+     *
+     * @return false if a pass is already running
+     */
+    public boolean sync(DiscoService service, boolean dryRun, Consumer<Report> callback) {
+        if (roles.isEmpty()) {
+            callback.accept(new Report(dryRun));
+            return true;
+        }
+
+        Optional<PermissionService> permissions = Sponge.getServiceManager().provide(PermissionService.class);
+        if (!permissions.isPresent()) {
+            LOGGER.warn("Role sync skipped, no permission service is available");
+            Report report = new Report(dryRun);
+            report.error = "no permission service is available";
+            callback.accept(report);
+            return true;
+        }
+
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+
+        Report report = new Report(dryRun || this.dryRun);
+        long start = System.nanoTime();
+
+        service.getMemberRoles(guildId, roles).thenAcceptAsync(members -> {
+            report.members = members.size();
+            report.fetchTime = System.nanoTime() - start;
+
+            long diffStart = System.nanoTime();
+            List<Change> changes = diff(permissions.get(), members, report);
+            report.diffTime = System.nanoTime() - diffStart;
+
+            if (report.dryRun || changes.isEmpty()) {
+                PluginHelper.sync(() -> complete(report, callback));
+            } else {
+                PluginHelper.sync(new Apply(changes, report, callback));
+            }
+        }, PluginHelper.getAsync()).exceptionally(e -> {
+            LOGGER.error("Role sync failed", e);
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            report.error = String.valueOf(cause.getMessage());
+            PluginHelper.sync(() -> complete(report, callback));
+            return null;
+        });
+
+        return true;
+    }
+
+    private List<Change> diff(PermissionService service, Map<String, Set<String>> members, Report report) {
+        SubjectCollection groups = service.getGroupSubjects();
+        Map<String, SubjectReference> references = new HashMap<>();
+        for (String role : roles) {
+            references.put(role, groups.newSubjectReference(role));
+        }
+
+        // copied out first so that permission lookups don't hold up the storage
+        List<UUID> ids = new ArrayList<>();
+        List<String> snowflakes = new ArrayList<>();
+        users.iterate((id, snowflake) -> {
+            ids.add(id);
+            snowflakes.add(snowflake);
+        });
+        report.linked = ids.size();
+
+        List<Change> changes = new ArrayList<>();
+        List<CompletableFuture<Subject>> subjects = new ArrayList<>(LOAD_BATCH);
+        SubjectCollection collection = service.getUserSubjects();
+
+        for (int start = 0; start < ids.size(); start += LOAD_BATCH) {
+            int end = Math.min(ids.size(), start + LOAD_BATCH);
+
+            subjects.clear();
+            for (int i = start; i < end; i++) {
+                subjects.add(collection.loadSubject(ids.get(i).toString()));
+            }
+
+            for (int i = start; i < end; i++) {
+                Subject subject = subjects.get(i - start).join();
+                Set<String> held = members.getOrDefault(snowflakes.get(i), Collections.emptySet());
+                Set<String> current = getGroups(subject);
+                for (String role : roles) {
+                    boolean add = held.contains(role);
+                    if (add != current.contains(role)) {
+                        changes.add(new Change(subject, references.get(role), add));
+                        if (add) {
+                            report.added++;
+                        } else {
+                            report.removed++;
+                        }
+                    }
+                }
+            }
+        }
+
+        return changes;
+    }
+
+    private Set<String> getGroups(Subject subject) {
+        Set<String> groups = new HashSet<>();
+        for (SubjectReference parent : subject.getSubjectData().getParents(SubjectData.GLOBAL_CONTEXT)) {
+            if (parent.getCollectionIdentifier().equals(PermissionService.SUBJECTS_GROUP)) {
+                String name = parent.getSubjectIdentifier().toLowerCase();
+                if (roles.contains(name)) {
+                    groups.add(name);
+                }
+            }
+        }
+        return groups;
+    }
+
+    private void complete(Report report, Consumer<Report> callback) {
+        running.set(false);
+        LOGGER.info("Role sync: {}", report);
+        callback.accept(report);
+    }
+
+    private class Apply implements Runnable {
+
+        private final List<Change> changes;
+        private final Report report;
+        private final Consumer<Report> callback;
+        private final long start = System.nanoTime();
+
+        private int index = 0;
+
+        private Apply(List<Change> changes, Report report, Consumer<Report> callback) {
+            this.changes = changes;
+            this.report = report;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            long deadline = System.nanoTime() + tickBudget;
+            try {
+                while (index < changes.size()) {
+                    changes.get(index++).apply();
+                    if (System.nanoTime() >= deadline) {
+                        break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                // the pass ends here, otherwise no other pass could ever start
+                LOGGER.error("Role sync failed applying change " + index + " of " + changes.size(), e);
+                report.error = String.valueOf(e.getMessage());
+                report.applyTime = System.nanoTime() - start;
+                complete(report, callback);
+                return;
+            }
+
+            report.ticks++;
+
+            if (index < changes.size()) {
+                // continue on the next tick
+                PluginHelper.sync(this);
+            } else {
+                report.applyTime = System.nanoTime() - start;
+                complete(report, callback);
+            }
+        }
+    }
+
+    private static class Change {
+
+        private final Subject subject;
+        private final SubjectReference group;
+        private final boolean add;
+
+        private Change(Subject subject, SubjectReference group, boolean add) {
+            this.subject = subject;
+            this.group = group;
+            this.add = add;
+        }
+
+        private void apply() {
+            if (add) {
+                subject.getSubjectData().addParent(SubjectData.GLOBAL_CONTEXT, group);
+            } else {
+                subject.getSubjectData().removeParent(SubjectData.GLOBAL_CONTEXT, group);
+            }
+        }
+    }
+
+    public static class Report {
+
+        private final boolean dryRun;
+        private int members = 0;
+        private int linked = 0;
+        private int added = 0;
+        private int removed = 0;
+        private int ticks = 0;
+        private long fetchTime = 0L;
+        private long diffTime = 0L;
+        private long applyTime = 0L;
+        private String error = null;
+
+        private Report(boolean dryRun) {
+            this.dryRun = dryRun;
+        }
+
+        public boolean isDryRun() {
+            return dryRun;
+        }
+
+        public int getMembers() {
+            return members;
+        }
+
+        public int getLinked() {
+            return linked;
+        }
+
+        public int getAdded() {
+            return added;
+        }
+
+        public int getRemoved() {
+            return removed;
+        }
+
+        public int getTicks() {
+            return ticks;
+        }
+
+        public long getFetchMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(fetchTime);
+        }
+
+        public long getDiffMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(diffTime);
+        }
+
+        public long getApplyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(applyTime);
+        }
+
+        /**
+         * @return why the pass failed, or empty if it completed
+         */
+        public Optional<String> getError() {
+            return Optional.ofNullable(error);
+        }
+
+        @Override
+        public String toString() {
+            if (error != null) {
+                return String.format("%sfailed: %s", dryRun ? "(dry run) " : "", error);
+            }
+            return String.format(
+                    "%s%d members with roles, %d linked users, %d groups to add, %d to remove; fetch %dms, diff %dms, apply %dms over %d ticks",
+                    dryRun ? "(dry run) " : "", members, linked, added, removed,
+                    getFetchMillis(), getDiffMillis(), getApplyMillis(), ticks
+            );
+        }
+    }
+}
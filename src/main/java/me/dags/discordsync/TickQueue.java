@@ -0,0 +1,170 @@
+package me.dags.discordsync;
+
+import me.dags.discordsync.metrics.Histogram;
+import me.dags.discordsync.metrics.Metrics;
+import org.spongepowered.api.text.Text;
+import org.spongepowered.api.text.channel.MessageChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects main-thread work from any thread and runs it once per tick, stopping when the time
+ * budget for the tick has been used up. Whatever is left carries over to the next tick.
+ * Consecutive broadcasts to the same channel are sent as a single multi-line message.
+ *
+ * Work always runs in the order it was submitted. The capacity only applies to broadcasts: once
+ * that many tasks are waiting, further broadcasts are shed rather than queued. Other work (events,
+ * role changes) is queued regardless, as dropping or reordering it would leave players in the
+ * wrong state.
+ */
+public class TickQueue {
+
+    private static final Histogram DRAIN_TIME = Metrics.histogram(
+            "discordsync_tick_drain_seconds",
+            "Time spent running queued work each tick",
+            Histogram.FAST
+    );
+
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong shed = new AtomicLong();
+
+    private volatile int capacity;
+    private volatile long budget;
+
+    // only written by the draining (main) thread
+    private volatile long lastDrainTime = 0L;
+    private volatile long maxDrainTime = 0L;
+    private volatile long completed = 0L;
+    private volatile long coalesced = 0L;
+
+    public TickQueue(int capacity, long budgetMicros) {
+        configure(capacity, budgetMicros);
+    }
+
+    public void configure(int capacity, long budgetMicros) {
+        this.capacity = capacity;
+        this.budget = TimeUnit.MICROSECONDS.toNanos(budgetMicros);
+    }
+
+    public void submit(Runnable task) {
+        size.incrementAndGet();
+        queue.add(task);
+    }
+
+    public void broadcast(MessageChannel channel, Text text) {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            shed.incrementAndGet();
+            return;
+        }
+        queue.add(new Broadcast(channel, text));
+    }
+
+    public void drain() {
+        long start = System.nanoTime();
+        long deadline = start + budget;
+        long count = 0L;
+
+        Runnable task;
+        while ((task = poll()) != null) {
+            if (task instanceof Broadcast) {
+                task = coalesce((Broadcast) task);
+            }
+
+            try {
+                task.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+
+            count++;
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+
+        long time = System.nanoTime() - start;
+        if (count > 0) {
+            DRAIN_TIME.record(time);
+        }
+        lastDrainTime = time;
+        if (time > maxDrainTime) {
+            maxDrainTime = time;
+        }
+        completed += count;
+    }
+
+    public int getDepth() {
+        return size.get();
+    }
+
+    public long getLastDrainNanos() {
+        return lastDrainTime;
+    }
+
+    public long getMaxDrainNanos() {
+        return maxDrainTime;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public long getShed() {
+        return shed.get();
+    }
+
+    private Runnable poll() {
+        Runnable task = queue.poll();
+        if (task != null) {
+            size.decrementAndGet();
+        }
+        return task;
+    }
+
+    private Runnable coalesce(Broadcast first) {
+        if (!first.canMerge(queue.peek())) {
+            return first;
+        }
+
+        List<Text> lines = new ArrayList<>();
+        lines.add(first.text);
+        while (first.canMerge(queue.peek())) {
+            lines.add(((Broadcast) poll()).text);
+        }
+
+        coalesced += lines.size() - 1;
+        return new Broadcast(first.channel, Text.joinWith(Text.NEW_LINE, lines));
+    }
+
+    private static class Broadcast implements Runnable {
+
+        private final MessageChannel channel;
+        private final Text text;
+
+        private Broadcast(MessageChannel channel, Text text) {
+            this.channel = channel;
+            this.text = text;
+        }
+
+        private boolean canMerge(Runnable next) {
+            return next instanceof Broadcast && ((Broadcast) next).channel == channel;
+        }
+
+        @Override
+        public void run() {
+            channel.send(text);
+        }
+    }
+}
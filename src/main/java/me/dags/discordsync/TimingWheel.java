@@ -0,0 +1,83 @@
+package me.dags.discordsync;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel: timeouts are placed in the slot that they fall due in, along with the
+ * number of full turns of the wheel still to wait. Each tick only visits one slot, so scheduling,
+ * cancelling and expiring are all O(1) regardless of how many timeouts are outstanding.
+ *
+ * Not thread safe.
+ */
+public class TimingWheel<T> {
+
+    private final List<Set<Timeout<T>>> slots;
+    private final long tick;
+
+    private long time;
+    private int cursor = 0;
+
+    public TimingWheel(int slots, long tickMillis, long now) {
+        this.slots = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            this.slots.add(new HashSet<>());
+        }
+        this.tick = tickMillis;
+        this.time = now;
+    }
+
+    public Timeout<T> schedule(T value, long delayMillis) {
+        long ticks = Math.max(1L, (delayMillis + tick - 1) / tick);
+        int slot = (int) ((cursor + ticks) % slots.size());
+        Timeout<T> timeout = new Timeout<>(value, slot, (ticks - 1) / slots.size());
+        slots.get(slot).add(timeout);
+        return timeout;
+    }
+
+    public void cancel(Timeout<T> timeout) {
+        slots.get(timeout.slot).remove(timeout);
+    }
+
+    /**
+     * Moves the wheel on to the given time, passing the value of each timeout that has fallen due
+     * to the consumer.
+     */
+    public void advance(long now, Consumer<T> expired) {
+        while (now - time >= tick) {
+            time += tick;
+            cursor = (cursor + 1) % slots.size();
+            List<Timeout<T>> due = null;
+            for (Timeout<T> timeout : slots.get(cursor)) {
+                if (timeout.rounds-- <= 0) {
+                    if (due == null) {
+                        due = new ArrayList<>();
+                    }
+                    due.add(timeout);
+                }
+            }
+            if (due != null) {
+                slots.get(cursor).removeAll(due);
+                for (Timeout<T> timeout : due) {
+                    expired.accept(timeout.value);
+                }
+            }
+        }
+    }
+
+    public static class Timeout<T> {
+
+        private final T value;
+        private final int slot;
+        private long rounds;
+
+        private Timeout(T value, int slot, long rounds) {
+            this.value = value;
+            this.slot = slot;
+            this.rounds = rounds;
+        }
+    }
+}
@@ -1,15 +1,28 @@
 package me.dags.discordsync.config;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author dags <dags@dags.me>
  */
 public class Channels {
 
     public Channel main = new Channel();
+    public List<Channel> channels = new ArrayList<>();
+
+    public List<Channel> getAll() {
+        List<Channel> all = new ArrayList<>(channels.size() + 1);
+        all.add(main);
+        all.addAll(channels);
+        return all;
+    }
 
     public static class Channel {
         public String channelId = "";
         public String webhook = "";
+        // in (discord -> minecraft), out (minecraft -> discord) or both
+        public String direction = "both";
         public Discord discord = new Discord();
         public Minecraft minecraft = new Minecraft();
     }
@@ -19,6 +32,9 @@ public class Channels {
         public String message = "**{0}**: {1}";
         public String connected = "```{0} joined the server```";
         public String disconnected = "```{0} left the server```";
+        // used when several players join/leave within the digest window: {0} count, {1} names
+        public String connectedDigest = "```{0} players joined: {1}```";
+        public String disconnectedDigest = "```{0} players left: {1}```";
         public String starting = "```Server is starting...```";
         public String stopping = "```Server is stopping...```";
         public String avatar = "https://minotar.net/helm/{0}";
@@ -26,5 +42,7 @@ public class Channels {
 
     public static class Minecraft {
         public String message = "[blue](`[Discord]` {name}): {message}";
+        // broadcast, all, players, console or permission:<node>
+        public String channel = "broadcast";
     }
 }
@@ -2,8 +2,9 @@ package me.dags.discordsync.config;
 
 import me.dags.text.MUSpec;
 import me.dags.text.template.MUTemplate;
-
-import java.text.MessageFormat;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.text.Text;
+import org.spongepowered.api.text.channel.MessageChannel;
 
 /**
  * @author dags <dags@dags.me>
@@ -12,20 +13,65 @@ public class DiscordChannel {
 
     private static final MUSpec spec = MUSpec.create();
 
+    private static final String PERMISSION = "permission:";
+
     private final String id;
     private final String webhook;
     private final MUTemplate template;
+    private final Format format;
+    private final boolean inbound;
+    private final boolean outbound;
+    private final MessageChannel target;
 
     public DiscordChannel(String id, String template, String webhook) {
+        this(id, template, webhook, new Format(new Channels.Discord()), "both", "broadcast");
+    }
+
+    public DiscordChannel(Channels.Channel channel) {
+        this(
+                channel.channelId,
+                channel.minecraft.message,
+                channel.webhook,
+                new Format(channel.discord),
+                channel.direction,
+                channel.minecraft.channel
+        );
+    }
+
+    private DiscordChannel(String id, String template, String webhook, Format format, String direction, String target) {
         this.id = id;
         this.webhook = webhook;
         this.template = spec.template(template);
+        this.format = format;
+        this.inbound = !direction.equalsIgnoreCase("out");
+        this.outbound = !direction.equalsIgnoreCase("in");
+        this.target = getMessageChannel(target);
     }
 
     public String getId() {
         return id;
     }
 
+    public Format getFormat() {
+        return format;
+    }
+
+    public boolean isInbound() {
+        return inbound;
+    }
+
+    public boolean isOutbound() {
+        return outbound;
+    }
+
+    /**
+     * The minecraft channel that messages from this discord channel are sent to.
+     */
+    public MessageChannel getMinecraftChannel() {
+        // the server's broadcast channel can be replaced at any time so is looked up on use
+        return target != null ? target : Sponge.getServer().getBroadcastChannel();
+    }
+
     public MUTemplate getTemplate() {
         return template;
     }
@@ -34,56 +80,102 @@ public class DiscordChannel {
         return webhook;
     }
 
+    /**
+     * Parses MU markup, such as discord content that has been through the MarkdownTranslator.
+     */
+    public static Text render(String markup) {
+        return spec.render(markup);
+    }
+
+    private static MessageChannel getMessageChannel(String name) {
+        if (name.regionMatches(true, 0, PERMISSION, 0, PERMISSION.length())) {
+            return MessageChannel.permission(name.substring(PERMISSION.length()));
+        }
+        switch (name.toLowerCase()) {
+            case "all":
+                return MessageChannel.TO_ALL;
+            case "players":
+                return MessageChannel.TO_PLAYERS;
+            case "console":
+                return MessageChannel.TO_CONSOLE;
+            case "broadcast":
+            default:
+                return null;
+        }
+    }
+
     public static class Format {
 
-        private final String title;
-        private final String message;
-        private final String connect;
-        private final String disconnect;
-        private final String start;
-        private final String stop;
-        private final String avatar;
+        private final MessageTemplate title;
+        private final MessageTemplate message;
+        private final MessageTemplate connect;
+        private final MessageTemplate disconnect;
+        private final MessageTemplate connectDigest;
+        private final MessageTemplate disconnectDigest;
+        private final MessageTemplate start;
+        private final MessageTemplate stop;
+        private final MessageTemplate avatar;
 
         public Format(Channels.Discord discord) {
-            this(discord.title, discord.message, discord.connected, discord.disconnected, discord.starting, discord.stopping, discord.avatar);
+            this(
+                    discord.title,
+                    discord.message,
+                    discord.connected,
+                    discord.disconnected,
+                    discord.connectedDigest,
+                    discord.disconnectedDigest,
+                    discord.starting,
+                    discord.stopping,
+                    discord.avatar
+            );
+        }
+
+        public Format(String title, String message, String connect, String disconnect, String connectDigest, String disconnectDigest, String start, String stop, String avatar) {
+            this.title = MessageTemplate.compile(title);
+            this.message = MessageTemplate.compile(message);
+            this.connect = MessageTemplate.compile(connect);
+            this.disconnect = MessageTemplate.compile(disconnect);
+            this.connectDigest = MessageTemplate.compile(connectDigest);
+            this.disconnectDigest = MessageTemplate.compile(disconnectDigest);
+            this.start = MessageTemplate.compile(start);
+            this.stop = MessageTemplate.compile(stop);
+            this.avatar = MessageTemplate.compile(avatar);
+        }
+
+        public String getAvatar(Object name) {
+            return avatar.render(name);
         }
 
-        public Format(String title, String message, String connect, String disconnect, String start, String stop, String avatar) {
-            this.title = title;
-            this.message = message;
-            this.connect = connect;
-            this.disconnect = disconnect;
-            this.start = start;
-            this.stop = stop;
-            this.avatar = avatar;
+        public String getConnect(Object name) {
+            return connect.render(name);
         }
 
-        public String getAvatar(Object... args) {
-            return MessageFormat.format(avatar, args);
+        public String getDisconnect(Object name) {
+            return disconnect.render(name);
         }
 
-        public String getConnect(Object... args) {
-            return MessageFormat.format(connect, args);
+        public String getConnectDigest(Object count, Object names) {
+            return connectDigest.render(count, names);
         }
 
-        public String getDisconnect(Object... args) {
-            return MessageFormat.format(disconnect, args);
+        public String getDisconnectDigest(Object count, Object names) {
+            return disconnectDigest.render(count, names);
         }
 
-        public String getMessage(Object... args) {
-            return MessageFormat.format(message, args);
+        public String getMessage(Object name, Object message) {
+            return this.message.render(name, message);
         }
 
-        public String getStart(Object... args) {
-            return MessageFormat.format(start, args);
+        public String getStart() {
+            return start.render();
         }
 
-        public String getStop(Object... args) {
-            return MessageFormat.format(stop, args);
+        public String getStop() {
+            return stop.render();
         }
 
-        public String getTitle(Object... args) {
-            return MessageFormat.format(title, args);
+        public String getTitle(Object name, Object server) {
+            return title.render(name, server);
         }
     }
 }
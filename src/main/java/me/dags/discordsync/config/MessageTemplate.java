@@ -0,0 +1,148 @@
+package me.dags.discordsync.config;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A {@link MessageFormat} pattern that is parsed once into literal segments and argument indexes.
+ * Supports the same quoting rules as MessageFormat. Patterns that use format types/styles (eg
+ * '{0,number}'), or that MessageFormat would reject, fall back to MessageFormat.format so that
+ * the output is always identical.
+ */
+public class MessageTemplate {
+
+    private final String pattern;
+    private final boolean fallback;
+    private final String[] literals;
+    private final int[] indexes;
+    private final int length;
+
+    private MessageTemplate(String pattern, boolean fallback, String[] literals, int[] indexes) {
+        this.pattern = pattern;
+        this.fallback = fallback;
+        this.literals = literals;
+        this.indexes = indexes;
+
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.length = length;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public String render() {
+        return render(0, null, null, null);
+    }
+
+    public String render(Object arg0) {
+        return render(1, arg0, null, null);
+    }
+
+    public String render(Object arg0, Object arg1) {
+        return render(2, arg0, arg1, null);
+    }
+
+    public String render(Object... args) {
+        return render(args == null ? 0 : args.length, null, null, args);
+    }
+
+    private String render(int count, Object arg0, Object arg1, Object[] args) {
+        if (fallback) {
+            return MessageFormat.format(pattern, toArray(count, arg0, arg1, args));
+        }
+
+        if (indexes.length == 0) {
+            return literals[0];
+        }
+
+        StringBuilder sb = new StringBuilder(length + 16 * indexes.length);
+        for (int i = 0; i < indexes.length; i++) {
+            sb.append(literals[i]);
+
+            int index = indexes[i];
+            if (index >= count) {
+                sb.append('{').append(index).append('}');
+                continue;
+            }
+
+            Object value = args != null ? args[index] : index == 0 ? arg0 : arg1;
+            if (value instanceof Number || value instanceof Date) {
+                // locale specific formatting
+                return MessageFormat.format(pattern, toArray(count, arg0, arg1, args));
+            }
+
+            sb.append(value);
+        }
+
+        return sb.append(literals[indexes.length]).toString();
+    }
+
+    private static Object[] toArray(int count, Object arg0, Object arg1, Object[] args) {
+        if (args != null || count == 0) {
+            return args;
+        }
+        return count == 1 ? new Object[]{arg0} : new Object[]{arg0, arg1};
+    }
+
+    public static MessageTemplate compile(String pattern) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        StringBuilder literal = new StringBuilder(pattern.length());
+        boolean quoted = false;
+
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+                    literal.append(c);
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == '{' && !quoted) {
+                int index = parseIndex(pattern, i + 1);
+                if (index < 0) {
+                    return new MessageTemplate(pattern, true, new String[0], new int[0]);
+                }
+                literals.add(literal.toString());
+                literal.setLength(0);
+                indexes.add(index);
+                i = pattern.indexOf('}', i);
+            } else {
+                literal.append(c);
+            }
+        }
+
+        literals.add(literal.toString());
+
+        int[] indexArray = new int[indexes.size()];
+        for (int i = 0; i < indexArray.length; i++) {
+            indexArray[i] = indexes.get(i);
+        }
+
+        return new MessageTemplate(pattern, false, literals.toArray(new String[0]), indexArray);
+    }
+
+    // only plain argument indexes are compiled, anything else is left to MessageFormat
+    private static int parseIndex(String pattern, int start) {
+        int end = pattern.indexOf('}', start);
+        if (end <= start || end - start > 9) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = start; i < end; i++) {
+            char c = pattern.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            index = index * 10 + (c - '0');
+        }
+        return index;
+    }
+}
@@ -11,17 +11,33 @@ public class MessageEvent extends AbstractEvent {
     private final String content;
     private final String channel;
     private final String guild;
+    private final long timestamp;
+    private final String markup;
 
     public MessageEvent(String guild, String author, String avatar, String content) {
         this(guild, "", author, avatar, content);
     }
 
+    public MessageEvent(String guild, String author, String avatar, String content, long timestamp) {
+        this(guild, "", author, avatar, content, timestamp);
+    }
+
     public MessageEvent(String guild, String channel, String author, String avatar, String content) {
+        this(guild, channel, author, avatar, content, System.currentTimeMillis());
+    }
+
+    public MessageEvent(String guild, String channel, String author, String avatar, String content, long timestamp) {
+        this(guild, channel, author, avatar, content, timestamp, null);
+    }
+
+    private MessageEvent(String guild, String channel, String author, String avatar, String content, long timestamp, String markup) {
         this.author = author;
         this.avatar = avatar;
         this.content = content;
         this.channel = channel;
         this.guild = guild;
+        this.timestamp = timestamp;
+        this.markup = markup;
     }
 
     public String getAuthor() {
@@ -45,7 +61,25 @@ public class MessageEvent extends AbstractEvent {
         return content;
     }
 
+    /**
+     * @return the content translated to MU markup, or null if it hasn't been
+     */
+    public String getMarkup() {
+        return markup;
+    }
+
+    public MessageEvent withMarkup(String markup) {
+        return new MessageEvent(guild, channel, author, avatar, content, timestamp, markup);
+    }
+
     public String getGuild() {
         return guild;
     }
+
+    /**
+     * @return the time in milliseconds that the message was sent on its origin (server or discord)
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
 }
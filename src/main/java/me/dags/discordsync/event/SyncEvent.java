@@ -0,0 +1,27 @@
+package me.dags.discordsync.event;
+
+import me.dags.discordsync.PluginHelper;
+import org.spongepowered.api.event.cause.Cause;
+import org.spongepowered.api.event.impl.AbstractEvent;
+
+/**
+ * Posted when the service has connected (or reconnected) to discord, and any state that is derived
+ * from the guild, such as linked users' roles, should be synchronised again.
+ */
+public class SyncEvent extends AbstractEvent {
+
+    private final String guild;
+
+    public SyncEvent(String guild) {
+        this.guild = guild;
+    }
+
+    @Override
+    public Cause getCause() {
+        return PluginHelper.getDefaultCause();
+    }
+
+    public String getGuild() {
+        return guild;
+    }
+}
@@ -0,0 +1,106 @@
+package me.dags.discordsync.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations into fixed buckets. Recording is a bucket search and two striped adds, no
+ * locks or allocation.
+ */
+public class Histogram {
+
+    /**
+     * End-to-end latencies, 1ms to 30s.
+     */
+    public static final long[] LATENCY = millis(1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000);
+
+    /**
+     * Short operations such as storage lookups or a tick's work, 1us to 50ms.
+     */
+    public static final long[] FAST = micros(1, 5, 10, 50, 100, 500, 1000, 5000, 10000, 50000);
+
+    private final long[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+
+    Histogram(long[] bounds) {
+        this.bounds = bounds;
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        int i = 0;
+        while (i < bounds.length && nanos > bounds[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sum.add(nanos);
+    }
+
+    public long getCount() {
+        long count = 0L;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getSumNanos() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the upper bound (in nanoseconds) of the bucket that the given percentile falls in
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = getBucketCounts();
+        long total = 0L;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+
+        long target = (long) Math.ceil(total * percentile);
+        long seen = 0L;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return bounds[i];
+            }
+        }
+        return bounds[bounds.length - 1];
+    }
+
+    long[] getBounds() {
+        return bounds;
+    }
+
+    long[] getBucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    private static long[] millis(long... values) {
+        long[] bounds = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bounds[i] = TimeUnit.MILLISECONDS.toNanos(values[i]);
+        }
+        return bounds;
+    }
+
+    private static long[] micros(long... values) {
+        long[] bounds = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bounds[i] = TimeUnit.MICROSECONDS.toNanos(values[i]);
+        }
+        return bounds;
+    }
+}
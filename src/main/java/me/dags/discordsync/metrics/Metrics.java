@@ -0,0 +1,139 @@
+package me.dags.discordsync.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The plugin's metrics. Counters and histograms are created on first use and live for the
+ * lifetime of the server, so callers on hot paths should hold on to the instance they get back
+ * rather than looking it up each time.
+ *
+ * Names follow the prometheus conventions; durations are recorded in nanoseconds and exported
+ * in seconds.
+ */
+public class Metrics {
+
+    // declared first, the metrics below register themselves into it
+    private static final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public static final Counter WEBHOOK_SENT = counter("discordsync_webhook_sent_total", "Webhook messages accepted by discord");
+    public static final Counter WEBHOOK_FAILED = counter("discordsync_webhook_failed_total", "Webhook requests that failed or were rejected");
+    public static final Counter WEBHOOK_RATE_LIMITED = counter("discordsync_webhook_rate_limited_total", "Webhook requests rate limited by discord (429)");
+    public static final Histogram WEBHOOK_LATENCY = histogram("discordsync_webhook_latency_seconds", "Time from a server message to discord's response", Histogram.LATENCY);
+    public static final Counter RELAY_SENT = counter("discordsync_relay_frames_total", "Relay frames sent and received", "direction=\"sent\"");
+    public static final Counter RELAY_RECEIVED = counter("discordsync_relay_frames_total", "Relay frames sent and received", "direction=\"received\"");
+    public static final Counter RELAY_DROPPED = counter("discordsync_relay_dropped_total", "Relay frames dropped for slow or disconnected nodes");
+
+    public static Counter counter(String name, String help) {
+        return counter(name, help, "");
+    }
+
+    /**
+     * @param labels prometheus label pairs, ie: channel="1234"
+     */
+    public static Counter counter(String name, String help, String labels) {
+        return (Counter) family(name, help, "counter").series.computeIfAbsent(labels, l -> new Counter());
+    }
+
+    public static Histogram histogram(String name, String help, long[] bounds) {
+        return histogram(name, help, "", bounds);
+    }
+
+    public static Histogram histogram(String name, String help, String labels, long[] bounds) {
+        return (Histogram) family(name, help, "histogram").series.computeIfAbsent(labels, l -> new Histogram(bounds));
+    }
+
+    /**
+     * Registers a count that is kept elsewhere and read when the metrics are exported, replacing
+     * any previous one.
+     */
+    public static void counter(String name, String help, LongSupplier value) {
+        family(name, help, "counter").series.put("", value);
+    }
+
+    /**
+     * Registers a value that is read when the metrics are exported, replacing any previous one.
+     */
+    public static void gauge(String name, String help, LongSupplier value) {
+        family(name, help, "gauge").series.put("", value);
+    }
+
+    public static Map<String, Object> getSeries(String name) {
+        Family family = families.get(name);
+        return family == null ? Collections.emptyMap() : Collections.unmodifiableMap(family.series);
+    }
+
+    /**
+     * Writes every metric in the prometheus text format.
+     */
+    public static void write(Writer writer) throws IOException {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                Object metric = series.getValue();
+                if (metric instanceof Histogram) {
+                    writeHistogram(sb, name, series.getKey(), (Histogram) metric);
+                } else if (metric instanceof Counter) {
+                    writeSample(sb, name, series.getKey(), Long.toString(((Counter) metric).get()));
+                } else {
+                    writeSample(sb, name, series.getKey(), Long.toString(((LongSupplier) metric).getAsLong()));
+                }
+            }
+        }
+        writer.write(sb.toString());
+    }
+
+    private static void writeHistogram(StringBuilder sb, String name, String labels, Histogram histogram) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long[] bounds = histogram.getBounds();
+        long[] counts = histogram.getBucketCounts();
+        long total = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+            String le = i < bounds.length ? seconds(bounds[i]) : "+Inf";
+            writeSample(sb, name + "_bucket", prefix + "le=\"" + le + "\"", Long.toString(total));
+        }
+        writeSample(sb, name + "_sum", labels, seconds(histogram.getSumNanos()));
+        writeSample(sb, name + "_count", labels, Long.toString(total));
+    }
+
+    private static void writeSample(StringBuilder sb, String name, String labels, String value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1_000_000_000D);
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static class Family {
+
+        private final String help;
+        private final String type;
+        private final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
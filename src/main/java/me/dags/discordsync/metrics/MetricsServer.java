@@ -0,0 +1,77 @@
+package me.dags.discordsync.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the metrics in the prometheus text format at /metrics.
+ */
+public class MetricsServer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordSync");
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private MetricsServer(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            StringWriter text = new StringWriter(4096);
+            Metrics.write(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public static Optional<MetricsServer> start(String host, int port) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+            ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "discordsync-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            server.createContext("/metrics", MetricsServer::handle);
+            server.setExecutor(executor);
+            server.start();
+            LOGGER.info("Serving metrics at http://{}:{}/metrics", host, port);
+            return Optional.of(new MetricsServer(server, executor));
+        } catch (IOException e) {
+            LOGGER.error("Unable to start the metrics server on " + host + ":" + port, e);
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package me.dags.discordsync.relay;
+
+import me.dags.discordsync.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * One end of a relay connection. Frames may be queued from any thread; they are held until the
+ * batch window has passed (or enough have built up) and then written together by the selector
+ * thread, which is the only thread that touches the socket.
+ *
+ * A retaining connection keeps each written frame until the other end acks it (with a running
+ * count of the frames it has received since the handshake). Unacked frames are queued again, in
+ * order, when the connection is re-attached, so nothing is lost in socket buffers when the other
+ * end goes away; frames it handled but hadn't yet acked are sent twice.
+ */
+class Connection {
+
+    private static final int BATCH_BYTES = 32 * 1024;
+
+    private final Deque<byte[]> queued = new ArrayDeque<>();
+    private final Deque<byte[]> unacked = new ArrayDeque<>();
+    private final int capacity;
+    private final long batchNanos;
+    private final boolean retain;
+
+    // selector thread only
+    private ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+    private ByteBuffer out = null;
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+
+    private int queuedBytes = 0;
+    private long queuedAt = 0L;
+    private long firstUnacked = 0L;
+    private long dropped = 0L;
+    private volatile boolean writing = false;
+
+    Connection(int capacity, long batchMillis, boolean retain) {
+        this.capacity = capacity;
+        this.batchNanos = batchMillis * 1000000L;
+        this.retain = retain;
+    }
+
+    void attach(SocketChannel channel, SelectionKey key) {
+        this.channel = channel;
+        this.key = key;
+        this.in.clear();
+        this.out = null;
+        this.writing = false;
+        requeue();
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Queues a frame, dropping the oldest frame if the connection is over capacity.
+     *
+     * @return true if the selector should be woken to send it (the batch was empty or is full)
+     */
+    synchronized boolean queue(byte[] frame) {
+        if (queued.isEmpty()) {
+            queuedAt = System.nanoTime();
+        }
+        queued.add(frame);
+        queuedBytes += frame.length;
+        Metrics.RELAY_SENT.increment();
+        while (queued.size() + unacked.size() > capacity) {
+            if (!unacked.isEmpty()) {
+                unacked.poll();
+                firstUnacked++;
+            } else {
+                queuedBytes -= queued.poll().length;
+            }
+            dropped++;
+            Metrics.RELAY_DROPPED.increment();
+        }
+        return queued.size() == 1 || queuedBytes >= BATCH_BYTES;
+    }
+
+    /**
+     * Releases the frames that the other end has received.
+     *
+     * @param count the number of frames received since the handshake
+     */
+    synchronized void ack(long count) {
+        while (firstUnacked < count && !unacked.isEmpty()) {
+            unacked.poll();
+            firstUnacked++;
+        }
+    }
+
+    synchronized int getQueued() {
+        return queued.size() + unacked.size();
+    }
+
+    /**
+     * @return the nanoTime that the oldest queued frame was queued at, or 0 if none are queued
+     */
+    synchronized long getQueuedAt() {
+        return queued.isEmpty() ? 0L : queuedAt;
+    }
+
+    synchronized long takeDropped() {
+        long count = dropped;
+        dropped = 0L;
+        return count;
+    }
+
+    /**
+     * @return true if nothing is queued, waiting to be written or waiting to be acked
+     */
+    boolean isIdle() {
+        return !writing && getQueued() == 0;
+    }
+
+    /**
+     * @return the nanoTime that the current batch is due, or Long.MAX_VALUE if nothing is queued
+     */
+    synchronized long getDeadline() {
+        if (queued.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        return queuedBytes >= BATCH_BYTES ? queuedAt : queuedAt + batchNanos;
+    }
+
+    /**
+     * @return the nanoTime that the selector next needs to flush this connection, or Long.MAX_VALUE
+     * if it is waiting for the socket to become writable (or has nothing to send)
+     */
+    long getNextFlush() {
+        return out != null ? Long.MAX_VALUE : getDeadline();
+    }
+
+    /**
+     * Moves the current batch into the write buffer (if due) and writes as much as the socket takes.
+     */
+    void flush(long now) throws IOException {
+        if (out == null && now >= getDeadline()) {
+            out = take();
+        }
+        while (out != null) {
+            channel.write(out);
+            if (out.hasRemaining()) {
+                // the socket is full, carry on once it is writable
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            out = now >= getDeadline() ? take() : null;
+        }
+        writing = false;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Writes a frame ahead of anything queued, for handshakes.
+     */
+    void writeNow(byte[] frame) throws IOException {
+        channel.write(ByteBuffer.wrap(frame));
+    }
+
+    void read(Frames.Handler handler) throws IOException {
+        if (channel.read(in) < 0) {
+            throw new IOException("Connection closed");
+        }
+        in = Frames.read(in, (type, body) -> {
+            Metrics.RELAY_RECEIVED.increment();
+            handler.handle(type, body);
+        });
+    }
+
+    void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        out = null;
+        writing = false;
+        channel = null;
+        key = null;
+    }
+
+    // puts the frames that were never acked back at the head of the queue, for a new connection
+    private synchronized void requeue() {
+        if (!unacked.isEmpty()) {
+            Iterator<byte[]> iterator = unacked.descendingIterator();
+            while (iterator.hasNext()) {
+                byte[] frame = iterator.next();
+                queued.addFirst(frame);
+                queuedBytes += frame.length;
+            }
+            unacked.clear();
+            queuedAt = System.nanoTime();
+        }
+        firstUnacked = 0L;
+    }
+
+    private synchronized ByteBuffer take() {
+        if (queued.isEmpty()) {
+            return null;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(queuedBytes);
+        for (byte[] frame : queued) {
+            batch.put(frame);
+        }
+        batch.flip();
+        if (retain) {
+            unacked.addAll(queued);
+        }
+        queued.clear();
+        queuedBytes = 0;
+        writing = true;
+        return batch;
+    }
+}
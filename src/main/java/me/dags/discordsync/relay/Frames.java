@@ -0,0 +1,197 @@
+package me.dags.discordsync.relay;
+
+import me.dags.discordsync.event.MessageEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The relay wire format. Every frame is a 4 byte length, followed by that many bytes: a one byte
+ * frame type and then the body, written with {@link DataOutputStream}.
+ */
+final class Frames {
+
+    static final int VERSION = 1;
+    static final int MAX_LENGTH = 1 << 20;
+
+    // node -> relay
+    static final byte HELLO = 1;
+    static final byte MESSAGE = 2;
+    static final byte ROLES_REQUEST = 3;
+
+    // relay -> node
+    static final byte WELCOME = 10;
+    static final byte INBOUND = 11;
+    static final byte ROLE_ADD = 12;
+    static final byte ROLE_REMOVE = 13;
+    static final byte SYNC = 14;
+    static final byte ROLES_RESPONSE = 15;
+    static final byte ACK = 16;
+
+    private Frames() {
+    }
+
+    static byte[] hello(String secret, String node) {
+        return encode(HELLO, out -> {
+            out.writeInt(VERSION);
+            out.writeUTF(secret);
+            out.writeUTF(node);
+        });
+    }
+
+    static byte[] welcome() {
+        return encode(WELCOME, out -> {});
+    }
+
+    static byte[] ack(long count) {
+        return encode(ACK, out -> out.writeLong(count));
+    }
+
+    static byte[] message(String webhook, MessageEvent message) {
+        return encode(MESSAGE, out -> {
+            out.writeUTF(webhook);
+            writeMessage(out, message);
+        });
+    }
+
+    static byte[] inbound(MessageEvent message) {
+        return encode(INBOUND, out -> {
+            writeMessage(out, message);
+            writeString(out, message.getMarkup());
+        });
+    }
+
+    static byte[] role(byte type, String role, String snowflake) {
+        return encode(type, out -> {
+            out.writeUTF(role);
+            out.writeUTF(snowflake);
+        });
+    }
+
+    static byte[] sync(String guild) {
+        return encode(SYNC, out -> out.writeUTF(guild));
+    }
+
+    static byte[] rolesRequest(long id, String guild, Collection<String> roles) {
+        return encode(ROLES_REQUEST, out -> {
+            out.writeLong(id);
+            out.writeUTF(guild);
+            out.writeInt(roles.size());
+            for (String role : roles) {
+                out.writeUTF(role);
+            }
+        });
+    }
+
+    static byte[] rolesResponse(long id, Map<String, ? extends Collection<String>> members, Throwable error) {
+        return encode(ROLES_RESPONSE, out -> {
+            out.writeLong(id);
+            out.writeBoolean(error == null);
+            if (error != null) {
+                out.writeUTF(String.valueOf(error.getMessage()));
+                return;
+            }
+            out.writeInt(members.size());
+            for (Map.Entry<String, ? extends Collection<String>> member : members.entrySet()) {
+                out.writeUTF(member.getKey());
+                out.writeInt(member.getValue().size());
+                for (String role : member.getValue()) {
+                    out.writeUTF(role);
+                }
+            }
+        });
+    }
+
+    static MessageEvent readMessage(DataInputStream in) throws IOException {
+        String guild = readString(in);
+        String channel = readString(in);
+        String author = readString(in);
+        String avatar = readString(in);
+        String content = readString(in);
+        long time = in.readLong();
+        return new MessageEvent(guild, channel, author, avatar, content, time);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Reads as many whole frames as the buffer holds, leaving it compacted for the next read.
+     *
+     * @return the buffer to read into next, which is grown if a frame doesn't fit in it
+     */
+    static ByteBuffer read(ByteBuffer buffer, Handler handler) throws IOException {
+        buffer.flip();
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt(buffer.position());
+            if (length <= 0 || length > MAX_LENGTH) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (buffer.remaining() < 4 + length) {
+                if (buffer.capacity() < 4 + length) {
+                    ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                    larger.put(buffer);
+                    return larger;
+                }
+                break;
+            }
+            buffer.getInt();
+            byte type = buffer.get();
+            byte[] body = new byte[length - 1];
+            buffer.get(body);
+            handler.handle(type, new DataInputStream(new ByteArrayInputStream(body)));
+        }
+        buffer.compact();
+        return buffer;
+    }
+
+    private static byte[] encode(byte type, Body body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(type);
+            body.write(out);
+            out.flush();
+            byte[] frame = bytes.toByteArray();
+            ByteBuffer.wrap(frame).putInt(frame.length - 4);
+            return frame;
+        } catch (IOException e) {
+            // writing to a byte array doesn't throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeMessage(DataOutputStream out, MessageEvent message) throws IOException {
+        writeString(out, message.getGuild());
+        writeString(out, message.getChannel());
+        writeString(out, message.getAuthor());
+        writeString(out, message.getAvatar());
+        writeString(out, message.getContent());
+        out.writeLong(message.getTimestamp());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    interface Handler {
+
+        void handle(byte type, DataInputStream body) throws IOException;
+    }
+
+    private interface Body {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+}
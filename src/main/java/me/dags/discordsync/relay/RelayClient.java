@@ -0,0 +1,217 @@
+package me.dags.discordsync.relay;
+
+import me.dags.discordsync.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The node end of a relay connection. Frames are queued while the relay is unreachable (up to
+ * {@code relay.capacity}, oldest dropped first) and sent once it has accepted the handshake. The
+ * connection is retried with a backoff, from {@code relay.reconnectMs} up to 30 seconds.
+ *
+ * Frames are kept until the relay acks them and are sent again after a reconnect, so delivery is
+ * at least once.
+ */
+class RelayClient {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordRelay");
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(30L);
+
+    private final String name;
+    private final Config.Relay config;
+    private final Listener listener;
+    private final Connection connection;
+    private final Selector selector;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    private volatile boolean connected = false;
+
+    // selector thread only
+    private long backoff;
+    private long reconnectAt = 0L;
+    private int failures = 0;
+    private SocketChannel channel = null;
+
+    RelayClient(String name, Config.Relay config, Listener listener) throws IOException {
+        this.name = name;
+        this.config = config;
+        this.listener = listener;
+        this.connection = new Connection(config.capacity, config.batchMs, true);
+        this.selector = Selector.open();
+        this.backoff = TimeUnit.MILLISECONDS.toNanos(config.reconnectMs);
+        this.thread = new Thread(this::run, "discordsync-relay-client");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    void send(byte[] frame) {
+        if (connection.queue(frame)) {
+            selector.wakeup();
+        }
+    }
+
+    int getQueueDepth() {
+        return connection.getQueued();
+    }
+
+    /**
+     * @return the time in milliseconds that the oldest queued frame has been waiting
+     */
+    long getQueueWait() {
+        long queuedAt = connection.getQueuedAt();
+        return queuedAt == 0L ? 0L : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedAt);
+    }
+
+    /**
+     * Waits for everything queued to be written to the relay, up to the timeout.
+     *
+     * @return true if the queue emptied in time
+     */
+    boolean drain(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!connected || !connection.isIdle()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(Math.min(remaining, 20L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                long now = System.nanoTime();
+                if (channel == null && now >= reconnectAt) {
+                    connect();
+                }
+
+                long deadline = channel == null ? reconnectAt : connected ? connection.getNextFlush() : Long.MAX_VALUE;
+                if (deadline == Long.MAX_VALUE) {
+                    selector.select();
+                } else if (deadline > now) {
+                    selector.select(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - now)));
+                } else {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isConnectable() && channel.finishConnect()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        connection.writeNow(Frames.hello(config.secret, name));
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read(this::handle);
+                    }
+                    if (key.isValid() && key.isWritable() && connected) {
+                        connection.flush(System.nanoTime());
+                    }
+                }
+
+                if (connected) {
+                    connection.flush(System.nanoTime());
+                }
+            } catch (IOException e) {
+                disconnect(e.getMessage());
+            }
+        }
+
+        disconnect(null);
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.error("Error closing the relay connection", e);
+        }
+    }
+
+    private void connect() throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setKeepAlive(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT);
+        connection.attach(channel, key);
+        channel.connect(new InetSocketAddress(config.host, config.port));
+    }
+
+    private void handle(byte type, DataInputStream body) throws IOException {
+        if (type == Frames.WELCOME) {
+            connected = true;
+            failures = 0;
+            backoff = TimeUnit.MILLISECONDS.toNanos(config.reconnectMs);
+            LOGGER.info("Connected to the relay at {}:{}", config.host, config.port);
+            listener.onConnected();
+            return;
+        }
+        if (type == Frames.ACK) {
+            connection.ack(body.readLong());
+            return;
+        }
+        listener.onFrame(type, body);
+    }
+
+    private void disconnect(String reason) {
+        if (channel == null) {
+            return;
+        }
+        connection.close();
+        channel = null;
+        reconnectAt = System.nanoTime() + backoff;
+        if (connected) {
+            connected = false;
+            if (reason != null) {
+                LOGGER.warn("Lost connection to the relay: {}", reason);
+            }
+            listener.onDisconnected();
+        } else if (reason != null && failures++ == 0) {
+            // only the first of a run of failures is worth a warning
+            LOGGER.warn("Unable to connect to the relay at {}:{}, retrying: {}", config.host, config.port, reason);
+        }
+        backoff = Math.min(MAX_BACKOFF, backoff * 2);
+    }
+
+    interface Listener {
+
+        void onConnected();
+
+        void onDisconnected();
+
+        void onFrame(byte type, DataInputStream body) throws IOException;
+    }
+}
@@ -0,0 +1,311 @@
+package me.dags.discordsync.relay;
+
+import me.dags.discordsync.config.Config;
+import me.dags.discordsync.event.MessageEvent;
+import me.dags.discordsync.event.RoleEvent;
+import me.dags.discordsync.event.SyncEvent;
+import me.dags.discordsync.service.DiscoService;
+import me.dags.discordsync.service.WebhookDispatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongepowered.api.event.Listener;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs on the node that owns the discord connection. Other nodes connect with a {@link RelayClient}
+ * and send their outbound messages through this node's {@link DiscoService}; inbound messages,
+ * role changes and sync requests from discord are broadcast back to them.
+ *
+ * Everything happens on a single selector thread. A node that can't keep up has its oldest frames
+ * dropped once {@code relay.capacity} are queued for it. Messages from a node are only sent on if
+ * they are for a discord webhook.
+ */
+public class RelayServer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordRelay");
+
+    private final DiscoService service;
+    private final Config.Relay config;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final List<Node> nodes = new CopyOnWriteArrayList<>();
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    private RelayServer(DiscoService service, Config.Relay config, Selector selector, ServerSocketChannel server) {
+        this.service = service;
+        this.config = config;
+        this.selector = selector;
+        this.server = server;
+        this.thread = new Thread(this::run, "discordsync-relay-server");
+        this.thread.setDaemon(true);
+    }
+
+    public static Optional<RelayServer> start(DiscoService service, Config.Relay config) {
+        if (config.secret.isEmpty()) {
+            LOGGER.warn("relay.secret is empty, any process that can reach {}:{} can join the relay", config.host, config.port);
+        }
+        try {
+            Selector selector = Selector.open();
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.configureBlocking(false);
+            server.bind(new InetSocketAddress(config.host, config.port));
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            RelayServer relay = new RelayServer(service, config, selector, server);
+            relay.thread.start();
+            LOGGER.info("Relay listening on {}:{}", config.host, config.port);
+            return Optional.of(relay);
+        } catch (IOException e) {
+            LOGGER.error("Unable to start the relay on " + config.host + ":" + config.port, e);
+            return Optional.empty();
+        }
+    }
+
+    public int getNodes() {
+        return nodes.size();
+    }
+
+    public void publish(MessageEvent message) {
+        broadcast(Frames.inbound(message));
+    }
+
+    @Listener
+    public void onRoleAdd(RoleEvent.Add event) {
+        broadcast(Frames.role(Frames.ROLE_ADD, event.getRole(), event.getSubjectSnowflake()));
+    }
+
+    @Listener
+    public void onRoleRemove(RoleEvent.Remove event) {
+        broadcast(Frames.role(Frames.ROLE_REMOVE, event.getRole(), event.getSubjectSnowflake()));
+    }
+
+    @Listener
+    public void onSync(SyncEvent event) {
+        broadcast(Frames.sync(event.getGuild()));
+    }
+
+    /**
+     * Gives the connected nodes up to the timeout to be sent what is queued for them, then
+     * disconnects them.
+     */
+    public void stop(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!isIdle() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(20L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isIdle() {
+        for (Node node : nodes) {
+            if (!node.connection.isIdle()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void broadcast(byte[] frame) {
+        boolean wake = false;
+        for (Node node : nodes) {
+            wake |= node.connection.queue(frame);
+        }
+        if (wake) {
+            selector.wakeup();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                long now = System.nanoTime();
+                long deadline = Long.MAX_VALUE;
+                for (Node node : nodes) {
+                    deadline = Math.min(deadline, node.connection.getNextFlush());
+                }
+                if (deadline == Long.MAX_VALUE) {
+                    selector.select();
+                } else if (deadline > now) {
+                    selector.select(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - now)));
+                } else {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Node node = (Node) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            node.connection.read((type, body) -> handle(node, type, body));
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            node.connection.flush(System.nanoTime());
+                        }
+                    } catch (IOException e) {
+                        disconnect(node, e.getMessage());
+                    } catch (RuntimeException e) {
+                        // a bad frame from one node must not take the relay down for the others
+                        LOGGER.error("Error handling relay node " + node.name, e);
+                        disconnect(node, e.toString());
+                    }
+                }
+
+                now = System.nanoTime();
+                for (Node node : nodes) {
+                    if (node.acked != node.received) {
+                        // one running count per pass rather than per frame
+                        node.acked = node.received;
+                        node.connection.queue(Frames.ack(node.received));
+                    }
+                    try {
+                        node.connection.flush(now);
+                    } catch (IOException e) {
+                        disconnect(node, e.getMessage());
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Error writing to relay node " + node.name, e);
+                        disconnect(node, e.toString());
+                    }
+                    long dropped = node.connection.takeDropped();
+                    if (dropped > 0) {
+                        LOGGER.warn("Dropped {} frames for relay node {}, it is not keeping up", dropped, node.name);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error("Relay selector error", e);
+            }
+        }
+
+        for (Node node : new ArrayList<>(nodes)) {
+            disconnect(node, "relay stopped");
+        }
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.error("Error closing the relay", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setKeepAlive(true);
+        Node node = new Node(new Connection(config.capacity, config.batchMs, false));
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ, node);
+        node.connection.attach(channel, key);
+    }
+
+    private void disconnect(Node node, String reason) {
+        if (nodes.remove(node)) {
+            LOGGER.info("Relay node {} disconnected: {}", node.name, reason);
+        }
+        node.connection.close();
+    }
+
+    private void handle(Node node, byte type, DataInputStream body) throws IOException {
+        if (node.name == null) {
+            if (type != Frames.HELLO) {
+                throw new IOException("Expected a handshake");
+            }
+            int version = body.readInt();
+            String secret = body.readUTF();
+            String name = body.readUTF();
+            if (version != Frames.VERSION) {
+                throw new IOException("Unsupported relay version " + version + " from " + name);
+            }
+            byte[] expected = config.secret.getBytes(StandardCharsets.UTF_8);
+            if (!MessageDigest.isEqual(expected, secret.getBytes(StandardCharsets.UTF_8))) {
+                throw new IOException("Incorrect secret from " + name);
+            }
+            node.name = name;
+            node.connection.writeNow(Frames.welcome());
+            nodes.add(node);
+            LOGGER.info("Relay node {} connected from {}", name, node.connection.getChannel().getRemoteAddress());
+            return;
+        }
+
+        node.received++;
+        switch (type) {
+            case Frames.MESSAGE:
+                String webhook = body.readUTF();
+                MessageEvent message = Frames.readMessage(body);
+                // nodes can only post to discord, not have this node make requests wherever they like
+                if (!WebhookDispatcher.isDiscordWebhook(webhook)) {
+                    LOGGER.warn("Ignoring message from relay node {} for a webhook that isn't discord's: {}", node.name, webhook);
+                    return;
+                }
+                service.sendMessage(webhook, message);
+                return;
+            case Frames.ROLES_REQUEST:
+                long id = body.readLong();
+                String guild = body.readUTF();
+                int count = body.readInt();
+                List<String> roles = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    roles.add(body.readUTF());
+                }
+                service.getMemberRoles(guild, roles).whenComplete((members, error) -> send(node, Frames.rolesResponse(id, members, error)));
+                return;
+            default:
+                LOGGER.warn("Ignoring unknown relay frame {} from {}", type, node.name);
+        }
+    }
+
+    private void send(Node node, byte[] frame) {
+        if (node.connection.queue(frame)) {
+            selector.wakeup();
+        }
+    }
+
+    private static class Node {
+
+        private final Connection connection;
+        private String name = null;
+        private long received = 0L;
+        private long acked = 0L;
+
+        private Node(Connection connection) {
+            this.connection = connection;
+        }
+    }
+}
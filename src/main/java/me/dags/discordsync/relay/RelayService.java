@@ -0,0 +1,191 @@
+package me.dags.discordsync.relay;
+
+import me.dags.discordsync.PluginHelper;
+import me.dags.discordsync.config.Config;
+import me.dags.discordsync.event.MessageEvent;
+import me.dags.discordsync.event.RoleEvent;
+import me.dags.discordsync.event.SyncEvent;
+import me.dags.discordsync.service.DiscoService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongepowered.api.event.Event;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * A {@link DiscoService} for nodes that don't connect to discord themselves, but go through the
+ * {@link RelayServer} on the node that does.
+ *
+ * Account link codes sent to the bot are redeemed on the relay node, so players on this node
+ * can't link their accounts until they join that server.
+ */
+public class RelayService implements DiscoService, RelayClient.Listener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordRelay");
+
+    private final RelayClient client;
+    private final Consumer<Event> events;
+    private final AtomicLong requests = new AtomicLong();
+    private final Map<Long, CompletableFuture<Map<String, Set<String>>>> pending = new ConcurrentHashMap<>();
+
+    private volatile String guildId;
+    private volatile long shutdownTimeout;
+    private volatile Consumer<MessageEvent> handler = message -> {};
+
+    public RelayService(Config config, Consumer<Event> events) throws IOException {
+        this.events = events;
+        this.guildId = config.discord.guildId;
+        this.shutdownTimeout = config.webhooks.shutdownTimeoutMs;
+        this.client = new RelayClient(config.server.name, config.relay, this);
+    }
+
+    @Override
+    public void shutdown() {
+        if (!client.drain(shutdownTimeout)) {
+            LOGGER.warn("gave up waiting on {} relay frames after {}ms", client.getQueueDepth(), shutdownTimeout);
+        }
+        client.close();
+    }
+
+    @Override
+    public void configure(Config config) {
+        guildId = config.discord.guildId;
+        shutdownTimeout = config.webhooks.shutdownTimeoutMs;
+    }
+
+    @Override
+    public void sendMessage(String webhook, MessageEvent message) {
+        client.send(Frames.message(webhook, message));
+    }
+
+    @Override
+    public void sendMessageSync(String webhook, MessageEvent message) {
+        sendMessage(webhook, message);
+        client.drain(shutdownTimeout);
+    }
+
+    @Override
+    public void setMessageHandler(Consumer<MessageEvent> handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void setLinkHandler(BiFunction<String, String, String> handler) {
+        // link codes only reach the node that is connected to discord
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return client.getQueueDepth();
+    }
+
+    @Override
+    public long getQueueWait() {
+        return client.getQueueWait();
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Set<String>>> getMemberRoles(String guild, Collection<String> roles) {
+        long id = requests.incrementAndGet();
+        CompletableFuture<Map<String, Set<String>>> future = new CompletableFuture<>();
+        pending.put(id, future);
+        client.send(Frames.rolesRequest(id, guild, roles));
+        return future;
+    }
+
+    @Override
+    public void onConnected() {
+        // anything that happened in the guild while disconnected has been missed
+        events.accept(new SyncEvent(guildId));
+    }
+
+    @Override
+    public void onDisconnected() {
+        IOException closed = new IOException("Lost connection to the relay");
+        for (Long id : pending.keySet()) {
+            CompletableFuture<?> future = pending.remove(id);
+            if (future != null) {
+                future.completeExceptionally(closed);
+            }
+        }
+    }
+
+    // called on the relay client's thread
+    @Override
+    public void onFrame(byte type, DataInputStream body) throws IOException {
+        switch (type) {
+            case Frames.INBOUND:
+                MessageEvent message = Frames.readMessage(body);
+                String markup = Frames.readString(body);
+                if (markup != null) {
+                    message = message.withMarkup(markup);
+                }
+                handler.accept(message);
+                events.accept(message);
+                return;
+            case Frames.ROLE_ADD:
+                events.accept(RoleEvent.add(body.readUTF(), body.readUTF()));
+                return;
+            case Frames.ROLE_REMOVE:
+                events.accept(RoleEvent.remove(body.readUTF(), body.readUTF()));
+                return;
+            case Frames.SYNC:
+                events.accept(new SyncEvent(body.readUTF()));
+                return;
+            case Frames.ROLES_RESPONSE:
+                readRoles(body);
+                return;
+            default:
+                LOGGER.warn("Ignoring unknown relay frame {}", type);
+        }
+    }
+
+    private void readRoles(DataInputStream body) throws IOException {
+        CompletableFuture<Map<String, Set<String>>> future = pending.remove(body.readLong());
+        boolean ok = body.readBoolean();
+        if (!ok) {
+            String error = body.readUTF();
+            if (future != null) {
+                future.completeExceptionally(new IllegalStateException(error));
+            }
+            return;
+        }
+
+        int members = body.readInt();
+        Map<String, Set<String>> result = new HashMap<>(members);
+        for (int i = 0; i < members; i++) {
+            String snowflake = body.readUTF();
+            int count = body.readInt();
+            Set<String> roles = new HashSet<>(count);
+            for (int j = 0; j < count; j++) {
+                roles.add(body.readUTF());
+            }
+            result.put(snowflake, roles);
+        }
+        if (future != null) {
+            future.complete(result);
+        }
+    }
+
+    public static Optional<DiscoService> create(Config config) {
+        try {
+            LOGGER.info("Relaying through {}:{}", config.relay.host, config.relay.port);
+            return Optional.of(new RelayService(config, PluginHelper::postEvent));
+        } catch (IOException e) {
+            LOGGER.error("Unable to start the relay client", e);
+            return Optional.empty();
+        }
+    }
+}
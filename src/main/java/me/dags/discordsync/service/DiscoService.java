@@ -1,13 +1,58 @@
 package me.dags.discordsync.service;
 
+import me.dags.discordsync.config.Config;
 import me.dags.discordsync.config.DiscordChannel;
 import me.dags.discordsync.event.MessageEvent;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
 public interface DiscoService {
 
     void shutdown();
 
-    void sendMessage(DiscordChannel channel, MessageEvent message);
+    /**
+     * Applies config changes that don't require a new connection to discord.
+     */
+    void configure(Config config);
+
+    void sendMessage(String webhook, MessageEvent message);
+
+    void sendMessageSync(String webhook, MessageEvent message);
+
+    default void sendMessage(DiscordChannel channel, MessageEvent message) {
+        sendMessage(channel.getWebhook(), message);
+    }
+
+    default void sendMessageSync(DiscordChannel channel, MessageEvent message) {
+        sendMessageSync(channel.getWebhook(), message);
+    }
+
+    /**
+     * Sets the handler for messages received from discord. The handler is called on the service's
+     * own thread (not the gateway's), before the {@link MessageEvent} is posted to the main thread.
+     */
+    void setMessageHandler(Consumer<MessageEvent> handler);
+
+    /**
+     * Sets the handler for account link codes sent to the bot, either in a direct message or with
+     * {@code !link <code>} in a guild channel. The handler is given the sender's snowflake and the
+     * code, and returns the reply to send back (or null for none).
+     */
+    void setLinkHandler(BiFunction<String, String, String> handler);
+
+    int getQueueDepth();
+
+    long getQueueWait();
 
-    void sendMessageSync(DiscordChannel channel, MessageEvent message);
+    /**
+     * Finds the members of the guild that hold any of the given (lower case) role names.
+     *
+     * @return a map of member snowflake to the lower case names of the given roles that they hold
+     */
+    CompletableFuture<Map<String, Set<String>>> getMemberRoles(String guild, Collection<String> roles);
 }
@@ -0,0 +1,72 @@
+package me.dags.discordsync.service;
+
+import me.dags.discordsync.config.Config;
+import me.dags.discordsync.storage.StorageHelper;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the http client shared by JDA and the webhook dispatcher, so that both draw on one
+ * connection pool and one set of dispatcher threads. The client is replaced when its settings
+ * change and is only torn down when the plugin stops.
+ */
+public class HttpClients {
+
+    private static OkHttpClient client = null;
+    private static Config.Http settings = null;
+
+    public static synchronized OkHttpClient get(Config.Http config) {
+        if (client != null && settings != null && StorageHelper.diff(settings, config).isEmpty()) {
+            return client;
+        }
+        shutdown();
+        client = create(config);
+        settings = config;
+        return client;
+    }
+
+    /**
+     * Stops the dispatcher threads and closes idle connections. Requests still running are left
+     * to finish.
+     */
+    public static synchronized void shutdown() {
+        if (client != null) {
+            client.dispatcher().executorService().shutdown();
+            client.connectionPool().evictAll();
+            client = null;
+            settings = null;
+        }
+    }
+
+    private static OkHttpClient create(Config.Http config) {
+        AtomicInteger count = new AtomicInteger();
+        // same as okhttp's default executor, but with daemon threads so they can't hold the server open
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "discordsync-http-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Dispatcher dispatcher = new Dispatcher(executor);
+        dispatcher.setMaxRequests(config.maxRequests);
+        dispatcher.setMaxRequestsPerHost(config.maxRequestsPerHost);
+
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(config.maxIdleConnections, config.keepAliveSeconds, TimeUnit.SECONDS))
+                .protocols(config.http2 ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1) : Collections.singletonList(Protocol.HTTP_1_1))
+                .connectTimeout(config.connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(config.readTimeoutMs, TimeUnit.MILLISECONDS)
+                .writeTimeout(config.readTimeoutMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+}
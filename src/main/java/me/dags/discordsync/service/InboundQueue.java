@@ -0,0 +1,302 @@
+package me.dags.discordsync.service;
+
+import me.dags.discordsync.config.Config;
+import me.dags.discordsync.event.MessageEvent;
+import me.dags.discordsync.metrics.Counter;
+import me.dags.discordsync.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+/**
+ * Sits between the gateway and the server so that a flood of discord messages can't turn into an
+ * unbounded pile of main-thread work. Each author has a token bucket; messages from an author
+ * whose bucket is empty are suppressed. The queue itself is bounded, and when full the overflow
+ * policy decides what gives:
+ *
+ * - drop-oldest: the oldest queued message is discarded
+ * - merge: the message is appended to the author's last queued message in the same channel (or
+ *   the oldest is dropped if there isn't one)
+ * - summarise: the message is discarded, and once the queue has caught up a single
+ *   "N messages suppressed" notice is sent to each affected channel
+ *
+ * Messages are handed to the sink on a dedicated worker thread, in order. While the main thread
+ * has more than {@code maxBacklog} tasks waiting the worker holds off, so that a backlog builds up
+ * here, where the overflow policy applies, rather than in the main thread's queue.
+ */
+public class InboundQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordInboundQueue");
+    private static final int MAX_AUTHORS = 4096;
+    private static final long NOTICE_INTERVAL = TimeUnit.SECONDS.toNanos(5L);
+    private static final long BACKLOG_WAIT = TimeUnit.MILLISECONDS.toNanos(10L);
+    private static final String SUPPRESSED = "discordsync_inbound_suppressed_total";
+    private static final String SUPPRESSED_HELP = "Discord messages held back by flood control";
+    private static final Counter THROTTLED = Metrics.counter(SUPPRESSED, SUPPRESSED_HELP, "reason=\"throttled\"");
+    private static final Counter DROPPED = Metrics.counter(SUPPRESSED, SUPPRESSED_HELP, "reason=\"dropped\"");
+    private static final Counter MERGED = Metrics.counter(SUPPRESSED, SUPPRESSED_HELP, "reason=\"merged\"");
+
+    private final Consumer<MessageEvent> sink;
+    private final Consumer<MessageEvent> notices;
+    private final IntSupplier backlog;
+    private final Thread worker;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Deque<Entry> queue = new ArrayDeque<>();
+    private final Map<String, Suppressed> suppressed = new LinkedHashMap<>();
+    private final Map<String, Bucket> authors = new LinkedHashMap<String, Bucket>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            // an evicted author simply starts again with a full bucket
+            return size() > MAX_AUTHORS;
+        }
+    };
+
+    private int capacity;
+    private volatile int maxBacklog;
+    private double rate;
+    private double burst;
+    private volatile String overflow;
+    private boolean closed = false;
+    private long nextNotice = 0L;
+
+    /**
+     * @param sink receives the queued messages
+     * @param notices receives the "messages suppressed" notices, which aren't real discord messages
+     * @param backlog the number of tasks waiting on the main thread
+     */
+    public InboundQueue(Config.Inbound config, Consumer<MessageEvent> sink, Consumer<MessageEvent> notices, IntSupplier backlog) {
+        this.sink = sink;
+        this.notices = notices;
+        this.backlog = backlog;
+        configure(config);
+        this.worker = new Thread(this::work, "discordsync-inbound");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public void configure(Config.Inbound config) {
+        lock.lock();
+        try {
+            capacity = Math.max(1, config.capacity);
+            maxBacklog = Math.max(1, config.maxBacklog);
+            rate = config.authorRate;
+            burst = Math.max(1, config.authorBurst);
+            overflow = config.overflow.toLowerCase();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param author the author's snowflake, used for flood control
+     */
+    public void offer(String author, MessageEvent message) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+
+            if (!authors.computeIfAbsent(author, a -> new Bucket(burst)).tryAcquire(rate, burst)) {
+                THROTTLED.increment();
+                suppress(message);
+                return;
+            }
+
+            if (queue.size() >= capacity && !overflow(author, message)) {
+                return;
+            }
+
+            queue.addLast(new Entry(author, message));
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            if (!queue.isEmpty()) {
+                LOGGER.info("Discarding {} queued inbound messages", queue.size());
+                queue.clear();
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // returns true if the message should still be queued
+    private boolean overflow(String author, MessageEvent message) {
+        switch (overflow) {
+            case "merge":
+                Iterator<Entry> iterator = queue.descendingIterator();
+                while (iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (entry.author.equals(author) && entry.message.getChannel().equals(message.getChannel())) {
+                        entry.merge(message);
+                        MERGED.increment();
+                        return false;
+                    }
+                }
+                drop(queue.pollFirst().message);
+                return true;
+            case "summarise":
+            case "summarize":
+                DROPPED.increment();
+                suppress(message);
+                return false;
+            case "drop-oldest":
+            default:
+                drop(queue.pollFirst().message);
+                return true;
+        }
+    }
+
+    private void drop(MessageEvent message) {
+        DROPPED.increment();
+        suppress(message);
+    }
+
+    private void suppress(MessageEvent message) {
+        Suppressed count = suppressed.computeIfAbsent(message.getChannel(), c -> new Suppressed(message.getGuild()));
+        count.count++;
+    }
+
+    private void work() {
+        while (true) {
+            MessageEvent next = null;
+            Map<String, Suppressed> notices = null;
+
+            lock.lock();
+            try {
+                // notices wait for the queue to catch up, and go out every few seconds at most
+                while (!closed && queue.isEmpty()) {
+                    long wait = nextNotice - System.nanoTime();
+                    if (!suppressed.isEmpty() && wait <= 0) {
+                        break;
+                    }
+                    if (suppressed.isEmpty()) {
+                        available.await();
+                    } else {
+                        available.awaitNanos(wait);
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                // leave messages queued here until the main thread catches up
+                if (backlog.getAsInt() > maxBacklog) {
+                    available.awaitNanos(BACKLOG_WAIT);
+                    continue;
+                }
+                if (!queue.isEmpty()) {
+                    next = queue.pollFirst().message;
+                } else {
+                    notices = new LinkedHashMap<>(suppressed);
+                    suppressed.clear();
+                    nextNotice = System.nanoTime() + NOTICE_INTERVAL;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            if (next != null) {
+                accept(sink, next);
+            } else {
+                report(notices);
+            }
+        }
+    }
+
+    private void report(Map<String, Suppressed> notices) {
+        boolean summarise = overflow.startsWith("summar");
+        for (Map.Entry<String, Suppressed> entry : notices.entrySet()) {
+            int count = entry.getValue().count;
+            LOGGER.warn("Suppressed {} messages from discord channel {}", count, entry.getKey());
+            if (summarise) {
+                String content = count == 1 ? "1 message suppressed" : count + " messages suppressed";
+                accept(this.notices, new MessageEvent(entry.getValue().guild, entry.getKey(), "Discord", "", content));
+            }
+        }
+    }
+
+    private static void accept(Consumer<MessageEvent> consumer, MessageEvent message) {
+        try {
+            consumer.accept(message);
+        } catch (Throwable t) {
+            LOGGER.error("Error handling message.", t);
+        }
+    }
+
+    private static class Entry {
+
+        private final String author;
+        private MessageEvent message;
+
+        private Entry(String author, MessageEvent message) {
+            this.author = author;
+            this.message = message;
+        }
+
+        private void merge(MessageEvent next) {
+            String content = message.getContent() + "\n" + next.getContent();
+            message = new MessageEvent(message.getGuild(), message.getChannel(), message.getAuthor(), message.getAvatar(), content, message.getTimestamp());
+        }
+    }
+
+    private static class Bucket {
+
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        private Bucket(double tokens) {
+            this.tokens = tokens;
+        }
+
+        private boolean tryAcquire(double rate, double burst) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilled) / 1e9 * rate);
+            refilled = now;
+            if (tokens < 1D) {
+                return false;
+            }
+            tokens -= 1D;
+            return true;
+        }
+    }
+
+    private static class Suppressed {
+
+        private final String guild;
+        private int count = 0;
+
+        private Suppressed(String guild) {
+            this.guild = guild;
+        }
+    }
+}
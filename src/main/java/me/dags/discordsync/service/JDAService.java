@@ -1,47 +1,81 @@
 package me.dags.discordsync.service;
 
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonGenerator;
 import me.dags.discordsync.PluginHelper;
-import me.dags.discordsync.config.DiscordChannel;
+import me.dags.discordsync.config.Config;
 import me.dags.discordsync.event.MessageEvent;
 import me.dags.discordsync.event.RoleEvent;
+import me.dags.discordsync.event.SyncEvent;
+import me.dags.discordsync.storage.StorageHelper;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.entities.ChannelType;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.events.DisconnectEvent;
 import net.dv8tion.jda.api.events.ReadyEvent;
 import net.dv8tion.jda.api.events.ReconnectedEvent;
+import net.dv8tion.jda.api.events.channel.text.TextChannelDeleteEvent;
+import net.dv8tion.jda.api.events.channel.text.update.TextChannelUpdateNameEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
+import net.dv8tion.jda.api.events.guild.member.update.GuildMemberUpdateNicknameEvent;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
+import net.dv8tion.jda.api.events.role.RoleDeleteEvent;
+import net.dv8tion.jda.api.events.role.update.RoleUpdateNameEvent;
+import net.dv8tion.jda.api.events.user.update.UserUpdateNameEvent;
 import net.dv8tion.jda.api.hooks.AnnotatedEventManager;
 import net.dv8tion.jda.api.hooks.SubscribeEvent;
-import okhttp3.Call;
-import okhttp3.Callback;
-import okhttp3.MediaType;
+import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.utils.ChunkingFilter;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.security.auth.login.LoginException;
-import java.io.IOException;
-import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class JDAService implements DiscoService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger("JDADiscordService");
-    private static final JsonFactory JSON_FACTORY = JsonFactory.builder().build();
+    private static final String LINK_COMMAND = "!link ";
 
     private final JDA api;
-    private final OkHttpClient client = new OkHttpClient.Builder().build();
+    private volatile String guildId;
+    private volatile long shutdownTimeout;
+    private final WebhookPipeline webhooks;
+    private final InboundQueue inbound;
+    private final NameCache names;
+    private final MarkdownTranslator translator;
 
-    private JDAService(JDA api) {
+    private volatile Consumer<MessageEvent> handler = message -> {};
+    private volatile BiFunction<String, String, String> linkHandler = (snowflake, code) -> null;
+
+    private JDAService(JDA api, Config config, OkHttpClient client, MessageSpool spool) {
         this.api = api;
+        this.webhooks = new WebhookPipeline(client, spool, config.webhooks.batchWindowMs);
+        this.guildId = config.discord.guildId;
+        this.shutdownTimeout = config.webhooks.shutdownTimeoutMs;
+        this.names = new NameCache(config.inbound.nameCacheSize);
+        this.translator = new MarkdownTranslator(names);
+        this.inbound = new InboundQueue(config.inbound, this::dispatch, message -> handler.accept(message), () -> PluginHelper.getQueue().getDepth());
         api.setAutoReconnect(true);
         api.setEventManager(new AnnotatedEventManager());
         api.addEventListener(this);
@@ -52,15 +86,89 @@ public class JDAService implements DiscoService {
         if (event.isWebhookMessage() || event.getAuthor().isBot()) {
             return;
         }
+        String content = event.getMessage().getContentRaw();
+        if (event.isFromType(ChannelType.PRIVATE)) {
+            // anything sent directly to the bot is treated as a link code
+            link(event, content.startsWith(LINK_COMMAND) ? content.substring(LINK_COMMAND.length()) : content);
+            return;
+        }
+        if (content.startsWith(LINK_COMMAND)) {
+            // codes posted in a guild channel are handled but not relayed to the server
+            link(event, content.substring(LINK_COMMAND.length()));
+            return;
+        }
         String guild = event.getGuild().getId();
         String channel = event.getChannel().getId();
         String author = event.getAuthor().getName();
         String avatar = event.getAuthor().getAvatarUrl();
-        String content = event.getMessage().getContentRaw();
-        PluginHelper.postEvent(new MessageEvent(guild, channel, author, avatar, content));
+        if (names.hasMissing(content)) {
+            cacheMentions(event.getMessage());
+        }
+        MessageEvent message = new MessageEvent(guild, channel, author, avatar, content);
+        inbound.offer(event.getAuthor().getId(), message);
         LOGGER.debug("Message: {}: {}", author, content);
     }
 
+    private void link(MessageReceivedEvent event, String code) {
+        String reply = linkHandler.apply(event.getAuthor().getId(), code.trim());
+        if (reply != null && !reply.isEmpty()) {
+            event.getChannel().sendMessage(reply).queue();
+        }
+    }
+
+    // called on the inbound queue's worker thread
+    private void dispatch(MessageEvent message) {
+        MessageEvent translated = message.withMarkup(translator.translate(message.getContent()));
+        handler.accept(translated);
+        PluginHelper.postEvent(translated);
+    }
+
+    // the mentioned entities come with the message, so this doesn't need the guild's member cache
+    private void cacheMentions(Message message) {
+        for (User user : message.getMentionedUsers()) {
+            names.putUser(user.getId(), user.getName());
+        }
+        for (Member member : message.getMentionedMembers()) {
+            names.putUser(member.getId(), member.getEffectiveName());
+        }
+        for (Role role : message.getMentionedRoles()) {
+            names.putRole(role.getId(), role.getName());
+        }
+        for (TextChannel channel : message.getMentionedChannels()) {
+            names.putChannel(channel.getId(), channel.getName());
+        }
+    }
+
+    @SubscribeEvent
+    public void onUserName(UserUpdateNameEvent event) {
+        names.updateUser(event.getUser().getId(), event.getNewName());
+    }
+
+    @SubscribeEvent
+    public void onNickname(GuildMemberUpdateNicknameEvent event) {
+        names.updateUser(event.getMember().getId(), event.getMember().getEffectiveName());
+    }
+
+    @SubscribeEvent
+    public void onRoleName(RoleUpdateNameEvent event) {
+        names.updateRole(event.getRole().getId(), event.getNewName());
+    }
+
+    @SubscribeEvent
+    public void onRoleDelete(RoleDeleteEvent event) {
+        names.removeRole(event.getRole().getId());
+    }
+
+    @SubscribeEvent
+    public void onChannelName(TextChannelUpdateNameEvent event) {
+        names.updateChannel(event.getChannel().getId(), event.getNewName());
+    }
+
+    @SubscribeEvent
+    public void onChannelDelete(TextChannelDeleteEvent event) {
+        names.removeChannel(event.getChannel().getId());
+    }
+
     @SubscribeEvent
     public void onRoleAdd(GuildMemberRoleAddEvent event) {
         for (Role role : event.getRoles()) {
@@ -92,53 +200,115 @@ public class JDAService implements DiscoService {
     @SubscribeEvent
     public void onServiceReconnect(ReconnectedEvent event) {
         LOGGER.info("service reconnected");
+        // role changes made while disconnected were missed
+        PluginHelper.postEvent(new SyncEvent(guildId));
     }
 
+    /**
+     * Sends anything still batched and waits up to webhooks.shutdownTimeoutMs for the webhook
+     * queues to empty before disconnecting. The shared http client is left running.
+     */
     @Override
     public void shutdown() {
         LOGGER.info("shutting down");
+        inbound.close();
+        webhooks.shutdown(shutdownTimeout);
         api.shutdown();
-        client.dispatcher().executorService().shutdown();
     }
 
     @Override
-    public void sendMessage(DiscordChannel channel, MessageEvent message) {
-        post(channel.getWebhook(), message).enqueue(new Callback() {
-            @Override
-            public void onFailure(Call call, IOException e) {
-                LOGGER.error("Error performing async request.", e);
-            }
+    public void configure(Config config) {
+        guildId = config.discord.guildId;
+        shutdownTimeout = config.webhooks.shutdownTimeoutMs;
+        inbound.configure(config.inbound);
+        webhooks.setBatchWindow(config.webhooks.batchWindowMs);
+    }
 
-            @Override
-            public void onResponse(Call call, Response response) {
-                handleResponse(response);
-            }
-        });
+    @Override
+    public void sendMessage(String webhook, MessageEvent message) {
+        webhooks.send(webhook, message);
     }
 
     @Override
-    public void sendMessageSync(DiscordChannel channel, MessageEvent message) {
-        try {
-            handleResponse(post(channel.getWebhook(), message).execute());
-        } catch (IOException e) {
-            LOGGER.error("Error performing sync request.", e);
-        }
+    public void sendMessageSync(String webhook, MessageEvent message) {
+        webhooks.sendSync(webhook, message);
+    }
+
+    @Override
+    public void setMessageHandler(Consumer<MessageEvent> handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void setLinkHandler(BiFunction<String, String, String> handler) {
+        this.linkHandler = handler;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return webhooks.getQueueDepth();
+    }
+
+    @Override
+    public long getQueueWait() {
+        return webhooks.getQueueWait();
     }
 
-    private Call post(String url, MessageEvent message) {
-        String json = JDAService.encode(message);
-        RequestBody body = RequestBody.create(MediaType.get("application/json"), json);
-        Request request = new Request.Builder()
-                .post(body)
-                .url(url)
-                .build();
-        return client.newCall(request);
+    @Override
+    public CompletableFuture<Map<String, Set<String>>> getMemberRoles(String guildId, Collection<String> roles) {
+        CompletableFuture<Map<String, Set<String>>> future = new CompletableFuture<>();
+        Guild guild = api.getGuildById(guildId);
+        if (guild == null) {
+            future.completeExceptionally(new IllegalStateException("Unknown guild: " + guildId));
+            return future;
+        }
+
+        guild.findMembers(member -> hasAnyRole(member, roles)).onSuccess(members -> {
+            Map<String, Set<String>> result = new HashMap<>(members.size());
+            for (Member member : members) {
+                Set<String> held = new HashSet<>();
+                for (Role role : member.getRoles()) {
+                    String name = role.getName().toLowerCase();
+                    if (roles.contains(name)) {
+                        held.add(name);
+                    }
+                }
+                result.put(member.getUser().getId(), held);
+            }
+            future.complete(result);
+        }).onError(future::completeExceptionally);
+
+        return future;
     }
 
-    public static Optional<DiscoService> create(String token) {
+    /**
+     * @param linked tests whether a member's snowflake belongs to a linked user, in which case
+     *               the member is kept in JDA's cache when using the lean gateway profile
+     */
+    public static Optional<DiscoService> create(Config config, Path spoolDir, Predicate<String> linked) {
         try {
-            JDA api = JDABuilder.createDefault(token).build().awaitReady();
-            JDAService service = new JDAService(api);
+            long start = System.currentTimeMillis();
+            OkHttpClient client = HttpClients.get(config.http);
+            JDA api = createBuilder(config, linked).setHttpClient(client).build();
+            try {
+                api.awaitReady();
+            } catch (IllegalStateException e) {
+                // discord closes the session (4014) when a privileged intent isn't enabled for the bot
+                api.shutdownNow();
+                if (isRoleSyncEnabled(config)) {
+                    LOGGER.error("Discord closed the connection, check that the {} intent is enabled for the bot or turn off roleSync.enabled", GatewayIntent.GUILD_MEMBERS, e);
+                } else {
+                    LOGGER.error("Discord closed the connection before it was ready", e);
+                }
+                return Optional.empty();
+            }
+            LOGGER.info("Connected in {}ms using the {} gateway profile", System.currentTimeMillis() - start, getProfile(config));
+
+            List<MessageSpool.Entry> undelivered = new ArrayList<>();
+            MessageSpool spool = WebhookPipeline.openSpool(config.webhooks.spool, spoolDir, undelivered);
+            JDAService service = new JDAService(api, config, client, spool);
+            service.webhooks.replay(undelivered);
+            PluginHelper.postEvent(new SyncEvent(config.discord.guildId));
             return Optional.of(service);
         } catch (LoginException | InterruptedException e) {
             LOGGER.error("Error connecting to discord api.", e);
@@ -146,29 +316,58 @@ public class JDAService implements DiscoService {
         }
     }
 
-    private static void handleResponse(Response response) {
-        try (Response r = response) {
-            if (!r.isSuccessful()) {
-                LOGGER.error("Failed to post message. Response: {}", r.message());
-            }
+    /**
+     * @return true if the changes between the two configs can only be applied by reconnecting
+     */
+    public static boolean requiresRestart(Config previous, Config next) {
+        return !previous.discord.botUserToken.equals(next.discord.botUserToken)
+                || !getProfile(previous).equals(getProfile(next))
+                || !getIntents(previous).equals(getIntents(next))
+                || !StorageHelper.diff(previous.webhooks.spool, next.webhooks.spool).isEmpty()
+                || !StorageHelper.diff(previous.http, next.http).isEmpty();
+    }
+
+    /**
+     * The gateway intents needed by the enabled features: guild messages for chat, direct messages
+     * for account linking, and guild members for role sync.
+     */
+    public static Set<GatewayIntent> getIntents(Config config) {
+        Set<GatewayIntent> intents = EnumSet.of(GatewayIntent.GUILD_MESSAGES, GatewayIntent.DIRECT_MESSAGES);
+        if (isRoleSyncEnabled(config)) {
+            intents.add(GatewayIntent.GUILD_MEMBERS);
         }
+        return intents;
     }
 
-    private static String encode(MessageEvent message) {
-        try {
-            StringWriter writer = new StringWriter(128);
-            JsonGenerator generator = JSON_FACTORY.createGenerator(writer);
+    private static boolean isRoleSyncEnabled(Config config) {
+        return config.roleSync.enabled && !config.server.roles.isEmpty();
+    }
 
-            generator.writeStartObject();
-            generator.writeStringField("username", message.getAuthor());
-            generator.writeStringField("avatar_url", message.getAvatar());
-            generator.writeStringField("content", message.getContent());
-            generator.writeEndObject();
+    private static String getProfile(Config config) {
+        return config.discord.gateway.equalsIgnoreCase("default") ? "default" : "lean";
+    }
 
-            return writer.toString();
-        } catch (IOException e) {
-            LOGGER.error("Error encoding message.", e);
-            return "{}";
+    private static JDABuilder createBuilder(Config config, Predicate<String> linked) {
+        String token = config.discord.botUserToken;
+        if (getProfile(config).equals("default")) {
+            JDABuilder builder = JDABuilder.createDefault(token);
+            // privileged, a bot without it switched on in the developer portal can't connect
+            return isRoleSyncEnabled(config) ? builder.enableIntents(GatewayIntent.GUILD_MEMBERS) : builder;
+        }
+
+        // only members of linked users are cached (for role updates), the rest are fetched on demand
+        return JDABuilder.create(token, getIntents(config))
+                .disableCache(EnumSet.allOf(CacheFlag.class))
+                .setMemberCachePolicy(member -> linked.test(member.getId()))
+                .setChunkingFilter(ChunkingFilter.NONE);
+    }
+
+    private static boolean hasAnyRole(Member member, Collection<String> roles) {
+        for (Role role : member.getRoles()) {
+            if (roles.contains(role.getName().toLowerCase())) {
+                return true;
+            }
         }
+        return false;
     }
 }
@@ -0,0 +1,268 @@
+package me.dags.discordsync.service;
+
+import java.util.function.Function;
+
+/**
+ * Translates discord message content into MU markup in a single pass: markdown (bold, italics,
+ * underline, strikethrough, spoilers and code) becomes MU styles, and user, role, channel and
+ * custom emoji mentions become readable names. Literal text is quoted so that it is never read as
+ * markup.
+ */
+public class MarkdownTranslator {
+
+    private static final int MAX_DEPTH = 8;
+    private static final String MENTION_STYLE = "aqua";
+    private static final String CODE_STYLE = "gray";
+
+    private final NameCache names;
+
+    public MarkdownTranslator(NameCache names) {
+        this.names = names;
+    }
+
+    public String translate(String content) {
+        if (isPlain(content)) {
+            return content;
+        }
+        StringBuilder out = new StringBuilder(content.length() + 16);
+        translate(content, 0, content.length(), out, 0);
+        return out.toString();
+    }
+
+    private void translate(String s, int start, int end, StringBuilder out, int depth) {
+        int text = start;
+        int i = start;
+        while (i < end) {
+            int next = -1;
+            switch (s.charAt(i)) {
+                case '\\':
+                    // a backslash makes the following markdown character literal
+                    if (i + 1 < end && isMarkdown(s.charAt(i + 1))) {
+                        literal(s, text, i, out);
+                        literal(s, i + 1, i + 2, out);
+                        next = i + 2;
+                    }
+                    break;
+                case '<':
+                    next = mention(s, i, end, text, out);
+                    break;
+                case '`':
+                    next = code(s, i, end, text, out);
+                    break;
+                case '*':
+                    next = span(s, i, end, "**", "bold", text, out, depth);
+                    if (next < 0) {
+                        next = span(s, i, end, "*", "italic", text, out, depth);
+                    }
+                    break;
+                case '_':
+                    next = span(s, i, end, "__", "underline", text, out, depth);
+                    if (next < 0 && isBoundary(s, i - 1)) {
+                        next = span(s, i, end, "_", "italic", text, out, depth);
+                    }
+                    break;
+                case '~':
+                    next = span(s, i, end, "~~", "strikethrough", text, out, depth);
+                    break;
+                case '|':
+                    next = span(s, i, end, "||", "obfuscated", text, out, depth);
+                    break;
+            }
+
+            if (next < 0) {
+                i++;
+            } else {
+                i = next;
+                text = next;
+            }
+        }
+        literal(s, text, end, out);
+    }
+
+    // returns the index after the closing delimiter, or -1 if the span isn't closed
+    private int span(String s, int i, int end, String delimiter, String style, int text, StringBuilder out, int depth) {
+        int open = i + delimiter.length();
+        if (depth >= MAX_DEPTH || !s.startsWith(delimiter, i)) {
+            return -1;
+        }
+
+        int close = s.indexOf(delimiter, open);
+        // a single '*' that is really the start of '**' belongs to the longer delimiter
+        while (close >= 0 && delimiter.length() == 1 && close + 1 < end && s.charAt(close + 1) == delimiter.charAt(0)) {
+            close = s.indexOf(delimiter, close + 2);
+        }
+        // the outermost delimiter of a run like '***' closes last, ie: ***a*** is bold(italic(a))
+        while (close >= 0 && delimiter.length() == 2 && close + 2 < end && s.charAt(close + 2) == delimiter.charAt(0)) {
+            close++;
+        }
+        if (close <= open || close + delimiter.length() > end) {
+            return -1;
+        }
+        // snake_case words aren't italics
+        if (delimiter.equals("_") && !isBoundary(s, close + 1)) {
+            return -1;
+        }
+
+        literal(s, text, i, out);
+        out.append('[').append(style).append("](");
+        translate(s, open, close, out, depth + 1);
+        out.append(')');
+        return close + delimiter.length();
+    }
+
+    private int code(String s, int i, int end, int text, StringBuilder out) {
+        int open;
+        int close;
+        if (s.startsWith("```", i)) {
+            open = i + 3;
+            close = s.indexOf("```", open);
+            if (close < 0 || close + 3 > end) {
+                return -1;
+            }
+            // skip the language name
+            int line = s.indexOf('\n', open);
+            if (line > open && line < close && isWord(s, open, line)) {
+                open = line + 1;
+            }
+            styled(s, open, close, CODE_STYLE, text, i, out);
+            return close + 3;
+        }
+
+        open = i + 1;
+        close = s.indexOf('`', open);
+        if (close <= open || close >= end) {
+            return -1;
+        }
+        styled(s, open, close, CODE_STYLE, text, i, out);
+        return close + 1;
+    }
+
+    private int mention(String s, int i, int end, int text, StringBuilder out) {
+        int close = s.indexOf('>', i);
+        if (close < 0 || close >= end) {
+            return -1;
+        }
+
+        String display;
+        String style = MENTION_STYLE;
+        if (s.startsWith("<@&", i)) {
+            display = name("@", names::getRole, s, i + 3, close);
+        } else if (s.startsWith("<@!", i)) {
+            display = name("@", names::getUser, s, i + 3, close);
+        } else if (s.startsWith("<@", i)) {
+            display = name("@", names::getUser, s, i + 2, close);
+        } else if (s.startsWith("<#", i)) {
+            display = name("#", names::getChannel, s, i + 2, close);
+        } else if (s.startsWith("<:", i) || s.startsWith("<a:", i)) {
+            display = emoji(s, s.indexOf(':', i) + 1, close);
+            style = null;
+        } else {
+            return -1;
+        }
+
+        if (display == null) {
+            return -1;
+        }
+        literal(s, text, i, out);
+        if (style == null) {
+            quote(display, 0, display.length(), out);
+        } else {
+            out.append('[').append(style).append("](");
+            quote(display, 0, display.length(), out);
+            out.append(')');
+        }
+        return close + 1;
+    }
+
+    private static String name(String prefix, Function<String, String> lookup, String s, int start, int end) {
+        if (!isId(s, start, end)) {
+            return null;
+        }
+        String name = lookup.apply(s.substring(start, end));
+        return prefix + (name == null ? "unknown" : name);
+    }
+
+    private static String emoji(String s, int start, int end) {
+        int colon = s.indexOf(':', start);
+        if (colon <= start || colon >= end || !isId(s, colon + 1, end)) {
+            return null;
+        }
+        return s.substring(start - 1, colon + 1);
+    }
+
+    private static void styled(String s, int start, int end, String style, int text, int i, StringBuilder out) {
+        literal(s, text, i, out);
+        out.append('[').append(style).append("](");
+        quote(s, start, end, out);
+        out.append(')');
+    }
+
+    private static void literal(String s, int start, int end, StringBuilder out) {
+        if (start < end) {
+            quote(s, start, end, out);
+        }
+    }
+
+    // text containing MU syntax characters is wrapped in backticks. MU has no way to escape a
+    // backtick inside a quote, so any backticks in the text become the look-alike modifier letter
+    private static void quote(String s, int start, int end, StringBuilder out) {
+        boolean special = false;
+        for (int i = start; i < end && !special; i++) {
+            special = isMarkup(s.charAt(i));
+        }
+        if (!special) {
+            out.append(s, start, end);
+            return;
+        }
+        out.append('`');
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            out.append(c == '`' ? '\u02cb' : c);
+        }
+        out.append('`');
+    }
+
+    private static boolean isPlain(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (isMarkdown(c) || isMarkup(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isMarkup(char c) {
+        return c == '[' || c == ']' || c == '(' || c == ')' || c == '{' || c == '}' || c == '`' || c == '\\';
+    }
+
+    private static boolean isMarkdown(char c) {
+        return c == '*' || c == '_' || c == '~' || c == '|' || c == '`' || c == '<' || c == '>' || c == '\\';
+    }
+
+    private static boolean isBoundary(String s, int i) {
+        return i < 0 || i >= s.length() || !Character.isLetterOrDigit(s.charAt(i));
+    }
+
+    private static boolean isId(String s, int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWord(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isLetterOrDigit(s.charAt(i)) && s.charAt(i) != '+' && s.charAt(i) != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,389 @@
+package me.dags.discordsync.service;
+
+import me.dags.discordsync.event.MessageEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of outbound messages, so that messages that could not be delivered
+ * (discord unreachable, server stopped or plugin reloaded mid-request) are sent again the next
+ * time the service starts.
+ *
+ * The log is split into segment files named after the sequence number of their first record.
+ * Each message is written as a record before it is sent, and an ack record is appended once
+ * discord has accepted it. A segment is deleted once it and every segment before it are fully
+ * acked. Records are length-prefixed and checksummed; reading a segment stops at the first torn
+ * or corrupt record. The oldest segments are dropped when the spool grows past its size limit,
+ * and messages older than the age limit are not replayed.
+ */
+public class MessageSpool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordMessageSpool");
+    private static final String EXTENSION = ".seg";
+    private static final byte MESSAGE = 1;
+    private static final byte ACK = 2;
+
+    private final Path dir;
+    private final long segmentSize;
+    private final long maxSize;
+    private final long maxAge;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+
+    private Segment active = null;
+    private DataOutputStream out = null;
+    private long nextSeq = 0L;
+    private long size = 0L;
+
+    public MessageSpool(Path dir, long segmentSize, long maxSize, long maxAge) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Reads the existing segments and returns the messages that were never acked, oldest first.
+     * New messages are always written to a fresh segment.
+     */
+    public synchronized List<Entry> open() throws IOException {
+        Files.createDirectories(dir);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    long first = Long.parseLong(name.substring(0, name.length() - EXTENSION.length()), 16);
+                    segments.put(first, new Segment(first, path));
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Ignoring unrecognised spool file {}", path);
+                }
+            }
+        }
+
+        Map<Long, Entry> unacked = new LinkedHashMap<>();
+        for (Segment segment : segments.values()) {
+            size += Files.size(segment.path);
+            read(segment, unacked);
+        }
+
+        trim();
+
+        long expiry = System.currentTimeMillis() - maxAge;
+        List<Entry> entries = new ArrayList<>(unacked.size());
+        int expired = 0;
+        for (Entry entry : unacked.values()) {
+            Map.Entry<Long, Segment> owner = segments.floorEntry(entry.seq);
+            if (owner == null || !owner.getValue().contains(entry.seq)) {
+                continue;
+            }
+            if (entry.time < expiry) {
+                ack(entry.seq);
+                expired++;
+            } else {
+                entries.add(entry);
+            }
+        }
+
+        if (expired > 0) {
+            LOGGER.warn("Discarded {} spooled messages older than {}ms", expired, maxAge);
+        }
+
+        deleteAcked();
+        roll();
+        return entries;
+    }
+
+    /**
+     * Appends a message to the spool.
+     *
+     * @return the sequence number used to ack the message
+     */
+    public synchronized long append(String webhook, MessageEvent message) {
+        long seq = nextSeq++;
+        long time = message.getTimestamp();
+        if (out == null) {
+            return seq;
+        }
+        try {
+            record.reset();
+            recordOut.writeByte(MESSAGE);
+            recordOut.writeLong(seq);
+            recordOut.writeLong(time);
+            writeString(recordOut, webhook);
+            writeString(recordOut, message.getGuild());
+            writeString(recordOut, message.getChannel());
+            writeString(recordOut, message.getAuthor());
+            writeString(recordOut, message.getAvatar());
+            writeString(recordOut, message.getContent());
+            write();
+            active.unacked++;
+            active.last = seq;
+            if (active.size >= segmentSize) {
+                roll();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Error writing to message spool.", e);
+        }
+        return seq;
+    }
+
+    /**
+     * Marks a message as delivered (or permanently rejected) so that it is not replayed.
+     */
+    public synchronized void ack(long seq) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(seq);
+        if (entry == null || !entry.getValue().contains(seq)) {
+            // the segment has already been trimmed
+            return;
+        }
+
+        entry.getValue().unacked--;
+
+        if (out != null) {
+            try {
+                record.reset();
+                recordOut.writeByte(ACK);
+                recordOut.writeLong(seq);
+                write();
+            } catch (IOException e) {
+                LOGGER.error("Error writing to message spool.", e);
+            }
+        }
+
+        if (segments.firstEntry().getValue().unacked <= 0) {
+            deleteAcked();
+        }
+    }
+
+    public synchronized int getPending() {
+        int pending = 0;
+        for (Segment segment : segments.values()) {
+            pending += segment.unacked;
+        }
+        return pending;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.error("Error closing message spool.", e);
+            }
+            out = null;
+        }
+    }
+
+    private void write() throws IOException {
+        crc.reset();
+        crc.update(record.toByteArray(), 0, record.size());
+        out.writeInt(record.size());
+        out.writeInt((int) crc.getValue());
+        record.writeTo(out);
+        out.flush();
+
+        int length = 8 + record.size();
+        active.size += length;
+        size += length;
+    }
+
+    private void roll() throws IOException {
+        close();
+        Path path = dir.resolve(String.format("%016x%s", nextSeq, EXTENSION));
+        OutputStream stream = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        out = new DataOutputStream(new BufferedOutputStream(stream, 8192));
+        // an empty segment (no messages since it was started) is carried on with
+        active = segments.computeIfAbsent(nextSeq, first -> new Segment(first, path));
+        deleteAcked();
+        trim();
+    }
+
+    // removes fully acked segments from the head of the log
+    private void deleteAcked() {
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == active || segment.unacked > 0) {
+                return;
+            }
+            delete(segment);
+            iterator.remove();
+        }
+    }
+
+    // drops the oldest segments, delivered or not, while the spool is over its size limit
+    private void trim() {
+        int discarded = 0;
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == active) {
+                break;
+            }
+            discarded += segment.unacked;
+            delete(segment);
+            iterator.remove();
+        }
+        if (discarded > 0) {
+            LOGGER.warn("Message spool is over {} bytes, discarded {} undelivered messages", maxSize, discarded);
+        }
+    }
+
+    private void delete(Segment segment) {
+        try {
+            size -= Files.size(segment.path);
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            LOGGER.error("Error deleting spool segment.", e);
+        }
+    }
+
+    private void read(Segment segment, Map<Long, Entry> unacked) {
+        try (InputStream stream = Files.newInputStream(segment.path)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 8192));
+            byte[] buffer = new byte[512];
+            while (true) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                if (length <= 0 || length > 1 << 20) {
+                    LOGGER.warn("Spool segment {} is corrupt, ignoring the rest of it", segment.path);
+                    return;
+                }
+                if (buffer.length < length) {
+                    buffer = new byte[length];
+                }
+                try {
+                    in.readFully(buffer, 0, length);
+                } catch (EOFException e) {
+                    // torn write, the server stopped part way through appending
+                    return;
+                }
+
+                crc.reset();
+                crc.update(buffer, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    LOGGER.warn("Spool segment {} is corrupt, ignoring the rest of it", segment.path);
+                    return;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(buffer, 0, length));
+                byte type = record.readByte();
+                long seq = record.readLong();
+                nextSeq = Math.max(nextSeq, seq + 1);
+
+                if (type == MESSAGE) {
+                    long time = record.readLong();
+                    String webhook = readString(record);
+                    String guild = readString(record);
+                    String channel = readString(record);
+                    String author = readString(record);
+                    String avatar = readString(record);
+                    String content = readString(record);
+                    MessageEvent message = new MessageEvent(guild, channel, author, avatar, content, time);
+                    unacked.put(seq, new Entry(seq, time, webhook, message));
+                    segment.unacked++;
+                    segment.last = seq;
+                } else if (type == ACK && unacked.remove(seq) != null) {
+                    Map.Entry<Long, Segment> owner = segments.floorEntry(seq);
+                    if (owner != null) {
+                        owner.getValue().unacked--;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Error reading spool segment " + segment.path, e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static class Segment {
+
+        private final long first;
+        private final Path path;
+        private long last = -1L;
+        private long size = 0L;
+        private int unacked = 0;
+
+        private Segment(long first, Path path) {
+            this.first = first;
+            this.path = path;
+        }
+
+        private boolean contains(long seq) {
+            return seq >= first && seq <= last;
+        }
+    }
+
+    public static class Entry {
+
+        private final long seq;
+        private final long time;
+        private final String webhook;
+        private final MessageEvent message;
+
+        private Entry(long seq, long time, String webhook, MessageEvent message) {
+            this.seq = seq;
+            this.time = time;
+            this.webhook = webhook;
+            this.message = message;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getWebhook() {
+            return webhook;
+        }
+
+        public MessageEvent getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package me.dags.discordsync.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, least-recently-used caches of the user, role and channel names needed to display
+ * mentions. Names are added from the mentions that come with each message and kept current by
+ * gateway update events, so translating a message never has to look anything up in the guild.
+ */
+public class NameCache {
+
+    private final Names users;
+    private final Names roles;
+    private final Names channels;
+
+    public NameCache(int capacity) {
+        this.users = new Names(capacity);
+        this.roles = new Names(capacity);
+        this.channels = new Names(capacity);
+    }
+
+    public String getUser(String id) {
+        return users.get(id);
+    }
+
+    public String getRole(String id) {
+        return roles.get(id);
+    }
+
+    public String getChannel(String id) {
+        return channels.get(id);
+    }
+
+    public void putUser(String id, String name) {
+        users.put(id, name);
+    }
+
+    public void putRole(String id, String name) {
+        roles.put(id, name);
+    }
+
+    public void putChannel(String id, String name) {
+        channels.put(id, name);
+    }
+
+    /**
+     * Updates a user's name if it is cached, without adding users that haven't been mentioned.
+     */
+    public void updateUser(String id, String name) {
+        users.replace(id, name);
+    }
+
+    public void updateRole(String id, String name) {
+        roles.replace(id, name);
+    }
+
+    public void updateChannel(String id, String name) {
+        channels.replace(id, name);
+    }
+
+    public void removeRole(String id) {
+        roles.remove(id);
+    }
+
+    public void removeChannel(String id) {
+        channels.remove(id);
+    }
+
+    /**
+     * @return true if the content mentions a user, role or channel that isn't cached
+     */
+    public boolean hasMissing(String content) {
+        int open = content.indexOf('<');
+        while (open >= 0) {
+            int close = content.indexOf('>', open);
+            if (close < 0) {
+                return false;
+            }
+            Names names = null;
+            int start = open + 2;
+            if (content.startsWith("<@&", open)) {
+                names = roles;
+                start++;
+            } else if (content.startsWith("<@!", open)) {
+                names = users;
+                start++;
+            } else if (content.startsWith("<@", open)) {
+                names = users;
+            } else if (content.startsWith("<#", open)) {
+                names = channels;
+            }
+            if (names != null && start < close && names.get(content.substring(start, close)) == null) {
+                return true;
+            }
+            open = content.indexOf('<', open + 1);
+        }
+        return false;
+    }
+
+    private static class Names {
+
+        private final Map<String, String> names;
+
+        private Names(int capacity) {
+            this.names = new LinkedHashMap<String, String>(64, 0.75F, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        private synchronized String get(String id) {
+            return names.get(id);
+        }
+
+        private synchronized void put(String id, String name) {
+            names.put(id, name);
+        }
+
+        private synchronized void replace(String id, String name) {
+            names.replace(id, name);
+        }
+
+        private synchronized void remove(String id) {
+            names.remove(id);
+        }
+    }
+}
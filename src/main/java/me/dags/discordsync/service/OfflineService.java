@@ -0,0 +1,60 @@
+package me.dags.discordsync.service;
+
+import me.dags.discordsync.config.Config;
+import me.dags.discordsync.event.MessageEvent;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Registered in place of a service that has been shut down when its replacement couldn't be
+ * created, so that nothing keeps calling into the old one. Messages are discarded and role
+ * lookups fail until a reload connects again.
+ */
+public class OfflineService implements DiscoService {
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public void configure(Config config) {
+    }
+
+    @Override
+    public void sendMessage(String webhook, MessageEvent message) {
+    }
+
+    @Override
+    public void sendMessageSync(String webhook, MessageEvent message) {
+    }
+
+    @Override
+    public void setMessageHandler(Consumer<MessageEvent> handler) {
+    }
+
+    @Override
+    public void setLinkHandler(BiFunction<String, String, String> handler) {
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public long getQueueWait() {
+        return 0L;
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Set<String>>> getMemberRoles(String guild, Collection<String> roles) {
+        CompletableFuture<Map<String, Set<String>>> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalStateException("Not connected to discord"));
+        return future;
+    }
+}
@@ -0,0 +1,144 @@
+package me.dags.discordsync.service;
+
+import me.dags.discordsync.event.MessageEvent;
+
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces consecutive messages from the same sender into a single webhook payload.
+ * A batch is handed to the sink once the window elapses, the next message would push
+ * it over discord's content limit, or the sender changes.
+ */
+public class WebhookBatcher {
+
+    public static final int MAX_CONTENT = 2000;
+
+    private final long window;
+    private final ScheduledExecutorService scheduler;
+    private final Consumer<MessageEvent> sink;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private volatile int maxMerged = 0;
+
+    private final StringBuilder content = new StringBuilder(MAX_CONTENT);
+    private MessageEvent first = null;
+    private ScheduledFuture<?> pending = null;
+    private boolean closed = false;
+    private int count = 0;
+
+    public WebhookBatcher(long window, ScheduledExecutorService scheduler, Consumer<MessageEvent> sink) {
+        this.window = window;
+        this.scheduler = scheduler;
+        this.sink = sink;
+    }
+
+    public synchronized void add(MessageEvent message) {
+        if (count > 0 && !accepts(message)) {
+            flush();
+        }
+
+        if (closed || window <= 0) {
+            emit(message, 1);
+            return;
+        }
+
+        if (count == 0) {
+            first = message;
+            content.append(message.getContent());
+            pending = scheduler.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+        } else {
+            content.append('\n').append(message.getContent());
+        }
+
+        count++;
+        if (content.length() >= MAX_CONTENT) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() {
+        MessageEvent message = drain();
+        if (message != null) {
+            emit(message, count);
+            reset();
+        }
+    }
+
+    /**
+     * Removes and returns the pending batch (if any) so that the caller may send it itself.
+     */
+    public synchronized MessageEvent take() {
+        MessageEvent message = drain();
+        if (message != null) {
+            record(count);
+            reset();
+        }
+        return message;
+    }
+
+    /**
+     * Stops batching and returns the pending batch. Messages added after closing are passed
+     * straight through to the sink.
+     */
+    public synchronized MessageEvent close() {
+        closed = true;
+        return take();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public int getMaxMerged() {
+        return maxMerged;
+    }
+
+    private boolean accepts(MessageEvent message) {
+        return Objects.equals(first.getAuthor(), message.getAuthor())
+                && Objects.equals(first.getAvatar(), message.getAvatar())
+                && content.length() + 1 + message.getContent().length() <= MAX_CONTENT;
+    }
+
+    private MessageEvent drain() {
+        if (count == 0) {
+            return null;
+        }
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        if (count == 1) {
+            return first;
+        }
+        return new MessageEvent(first.getGuild(), first.getChannel(), first.getAuthor(), first.getAvatar(), content.toString(), first.getTimestamp());
+    }
+
+    private void emit(MessageEvent message, int merged) {
+        record(merged);
+        sink.accept(message);
+    }
+
+    private void record(int merged) {
+        requests.increment();
+        messages.add(merged);
+        if (merged > maxMerged) {
+            maxMerged = merged;
+        }
+    }
+
+    private void reset() {
+        content.setLength(0);
+        first = null;
+        pending = null;
+        count = 0;
+    }
+}
@@ -0,0 +1,354 @@
+package me.dags.discordsync.service;
+
+import me.dags.discordsync.event.MessageEvent;
+import me.dags.discordsync.metrics.Metrics;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends webhook messages through one ordered queue per webhook url. Only one request per
+ * webhook is in flight at a time, and the next is held back until discord's rate-limit
+ * bucket for that webhook allows it. Requests that are rate-limited (429) stay at the head
+ * of the queue and are retried once the bucket resets. Requests that fail with a server error
+ * (5xx) or an io error also stay at the head of the queue and are retried with a backoff.
+ *
+ * Each submitted message's future completes with true once discord accepts it, false if discord
+ * rejects it outright (or the webhook url isn't valid), or exceptionally if it was never delivered.
+ */
+public class WebhookDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordWebhookDispatcher");
+    private static final Set<String> DISCORD_HOSTS = new HashSet<>(Arrays.asList(
+            "discord.com", "ptb.discord.com", "canary.discord.com",
+            "discordapp.com", "ptb.discordapp.com", "canary.discordapp.com"
+    ));
+    private static final long MIN_BACKOFF = 1000L;
+    private static final long MAX_BACKOFF = 60000L;
+
+    private final OkHttpClient client;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    public WebhookDispatcher(OkHttpClient client, ScheduledExecutorService scheduler) {
+        this.client = client;
+        this.scheduler = scheduler;
+    }
+
+    public CompletableFuture<Boolean> submit(String webhook, MessageEvent message) {
+        Pending pending = new Pending(message);
+        if (!isValid(webhook)) {
+            LOGGER.error("Not sending message to invalid webhook url '{}'", webhook);
+            Metrics.WEBHOOK_FAILED.increment();
+            pending.result.complete(false);
+            return pending.result;
+        }
+        buckets.computeIfAbsent(webhook, Bucket::new).offer(pending);
+        return pending.result;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Bucket bucket : buckets.values()) {
+            depth += bucket.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the time in milliseconds that the oldest queued message has been waiting
+     */
+    public long getWaitTime() {
+        long now = System.currentTimeMillis();
+        long wait = 0L;
+        for (Bucket bucket : buckets.values()) {
+            wait = Math.max(wait, bucket.waitTime(now));
+        }
+        return wait;
+    }
+
+    /**
+     * Waits for every queued message to be delivered (or rejected), up to the timeout.
+     *
+     * @return true if all of the queues emptied in time
+     */
+    public boolean drain(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (getQueueDepth() > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(Math.min(remaining, 20L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops dispatching. Messages that are still queued complete exceptionally, so that they are
+     * kept for replay.
+     */
+    public void close() {
+        IOException closed = new IOException("Webhook dispatcher closed");
+        for (Bucket bucket : buckets.values()) {
+            for (Pending pending : bucket.close()) {
+                pending.result.completeExceptionally(closed);
+            }
+        }
+    }
+
+    public static boolean isValid(String webhook) {
+        return webhook != null && HttpUrl.parse(webhook) != null;
+    }
+
+    /**
+     * @return true if the url is an https url for one of discord's webhook endpoints
+     */
+    public static boolean isDiscordWebhook(String webhook) {
+        HttpUrl url = webhook == null ? null : HttpUrl.parse(webhook);
+        return url != null
+                && url.scheme().equals("https")
+                && DISCORD_HOSTS.contains(url.host())
+                && url.encodedPath().startsWith("/api/webhooks/");
+    }
+
+    // latency is only recorded for the final response to a message, not for attempts that are retried
+    private static void record(Pending pending, int code) {
+        if (code == 429) {
+            Metrics.WEBHOOK_RATE_LIMITED.increment();
+            return;
+        }
+        if (code >= 200 && code < 300) {
+            Metrics.WEBHOOK_SENT.increment();
+        } else {
+            Metrics.WEBHOOK_FAILED.increment();
+        }
+        if (isRetryable(code)) {
+            return;
+        }
+        long latency = System.currentTimeMillis() - pending.message.getTimestamp();
+        Metrics.WEBHOOK_LATENCY.record(TimeUnit.MILLISECONDS.toNanos(latency));
+    }
+
+    private static boolean isRetryable(int code) {
+        return code == 429 || code >= 500;
+    }
+
+    private static long parseDelay(String seconds) {
+        if (seconds == null) {
+            return -1L;
+        }
+        try {
+            return (long) Math.ceil(Double.parseDouble(seconds) * 1000D);
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private static class Pending {
+
+        private final long queued = System.currentTimeMillis();
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private final MessageEvent message;
+        private WebhookPayload payload = null;
+        private int attempts = 0;
+
+        private Pending(MessageEvent message) {
+            this.message = message;
+        }
+
+        private WebhookPayload getPayload() {
+            if (payload == null) {
+                payload = WebhookPayload.encode(message);
+            }
+            return payload;
+        }
+    }
+
+    private class Bucket implements Callback {
+
+        private final String url;
+        private final Deque<Pending> queue = new ArrayDeque<>();
+
+        private int remaining = 1;
+        private long resetAt = 0L;
+        private boolean closed = false;
+        private boolean inFlight = false;
+        private ScheduledFuture<?> wakeup = null;
+
+        private Bucket(String url) {
+            this.url = url;
+        }
+
+        private synchronized int size() {
+            return queue.size();
+        }
+
+        private synchronized long waitTime(long now) {
+            Pending head = queue.peek();
+            return head == null ? 0L : now - head.queued;
+        }
+
+        private synchronized void offer(Pending pending) {
+            queue.add(pending);
+            pump();
+        }
+
+        private synchronized List<Pending> close() {
+            closed = true;
+            if (wakeup != null) {
+                wakeup.cancel(false);
+            }
+            List<Pending> list = new ArrayList<>(queue);
+            queue.clear();
+            return list;
+        }
+
+        private synchronized void wake() {
+            wakeup = null;
+            remaining = 1;
+            pump();
+        }
+
+        private void pump() {
+            while (!closed && !inFlight && wakeup == null && !queue.isEmpty()) {
+                long delay = resetAt - System.currentTimeMillis();
+                if (remaining <= 0 && delay > 0) {
+                    wakeup = scheduler.schedule(this::wake, delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+
+                Request request;
+                try {
+                    request = request(queue.peek());
+                } catch (RuntimeException e) {
+                    // a message that can't be sent must not hold up the ones behind it
+                    LOGGER.error("Unable to build webhook request", e);
+                    Metrics.WEBHOOK_FAILED.increment();
+                    queue.poll().result.complete(false);
+                    continue;
+                }
+
+                inFlight = true;
+                client.newCall(request).enqueue(this);
+            }
+        }
+
+        private Request request(Pending pending) {
+            return new Request.Builder().post(pending.getPayload()).url(url).build();
+        }
+
+        @Override
+        public synchronized void onFailure(Call call, IOException e) {
+            inFlight = false;
+            Metrics.WEBHOOK_FAILED.increment();
+            LOGGER.error("Error performing async request.", e);
+            retry(System.currentTimeMillis());
+        }
+
+        @Override
+        public synchronized void onResponse(Call call, Response response) {
+            try (Response r = response) {
+                inFlight = false;
+                long now = System.currentTimeMillis();
+
+                Pending head = queue.peek();
+                if (head != null) {
+                    record(head, r.code());
+                }
+
+                if (r.code() == 429) {
+                    long retry = parseDelay(r.header("Retry-After"));
+                    remaining = 0;
+                    resetAt = now + (retry > 0 ? retry : 1000L);
+                    LOGGER.warn("Rate limited by discord, retrying in {}ms", resetAt - now);
+                    pump();
+                    return;
+                }
+
+                if (r.code() >= 500) {
+                    LOGGER.warn("Failed to post message. Response: {}", r.message());
+                    retry(now);
+                    return;
+                }
+
+                updateBucket(r, now);
+
+                Pending pending = queue.poll();
+                if (pending != null) {
+                    pending.result.complete(r.isSuccessful());
+                }
+                if (!r.isSuccessful()) {
+                    LOGGER.error("Failed to post message. Response: {}", r.message());
+                }
+                pump();
+            }
+        }
+
+        // holds the head of the queue back for an exponentially increasing delay
+        private void retry(long now) {
+            Pending head = queue.peek();
+            if (head == null) {
+                pump();
+                return;
+            }
+
+            long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(head.attempts, 6));
+            head.attempts++;
+            remaining = 0;
+            resetAt = now + backoff;
+            LOGGER.warn("Retrying message in {}ms (attempt {})", backoff, head.attempts + 1);
+            pump();
+        }
+
+        private void updateBucket(Response response, long now) {
+            String remaining = response.header("X-RateLimit-Remaining");
+            if (remaining == null) {
+                return;
+            }
+
+            try {
+                this.remaining = Integer.parseInt(remaining);
+            } catch (NumberFormatException e) {
+                this.remaining = 1;
+                return;
+            }
+
+            long resetAfter = parseDelay(response.header("X-RateLimit-Reset-After"));
+            if (resetAfter >= 0) {
+                resetAt = now + resetAfter;
+                return;
+            }
+
+            long reset = parseDelay(response.header("X-RateLimit-Reset"));
+            if (reset >= 0) {
+                resetAt = reset;
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package me.dags.discordsync.service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import me.dags.discordsync.event.MessageEvent;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * A webhook request body that is encoded once, straight to UTF-8, into an okio Buffer. The
+ * buffer's segments are pooled by okio and are shared (not copied) each time the body is
+ * written, so a payload can be re-sent after a rate-limit without re-encoding it.
+ */
+public class WebhookPayload extends RequestBody {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordWebhookPayload");
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder().build();
+    private static final MediaType JSON = MediaType.get("application/json");
+
+    private final Buffer buffer;
+
+    private WebhookPayload(Buffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public long contentLength() {
+        return buffer.size();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.write(buffer.clone(), buffer.size());
+    }
+
+    public static WebhookPayload encode(MessageEvent message) {
+        Buffer buffer = new Buffer();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(buffer.outputStream(), JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeStringField("username", message.getAuthor());
+            generator.writeStringField("avatar_url", message.getAvatar());
+            generator.writeStringField("content", message.getContent());
+            generator.writeEndObject();
+        } catch (IOException e) {
+            LOGGER.error("Error encoding message.", e);
+            buffer.clear();
+            buffer.writeUtf8("{}");
+        }
+        return new WebhookPayload(buffer);
+    }
+}
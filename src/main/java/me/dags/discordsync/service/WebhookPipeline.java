@@ -0,0 +1,211 @@
+package me.dags.discordsync.service;
+
+import me.dags.discordsync.config.Config;
+import me.dags.discordsync.event.MessageEvent;
+import okhttp3.OkHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The outbound side of the service: a {@link WebhookBatcher} per webhook, feeding the
+ * {@link WebhookDispatcher}, with each message written to the {@link MessageSpool} (if there is
+ * one) until discord has answered for it.
+ */
+public class WebhookPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordWebhookPipeline");
+    private static final long SYNC_TIMEOUT = 10L;
+
+    private final Map<String, WebhookBatcher> batchers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "discordsync-webhook");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final WebhookDispatcher dispatcher;
+    private final MessageSpool spool;
+
+    private volatile long batchWindow;
+
+    public WebhookPipeline(OkHttpClient client, MessageSpool spool, long batchWindow) {
+        this.dispatcher = new WebhookDispatcher(client, scheduler);
+        this.spool = spool;
+        this.batchWindow = batchWindow;
+    }
+
+    public void send(String webhook, MessageEvent message) {
+        getBatcher(webhook).add(message);
+    }
+
+    /**
+     * Sends the message, and anything batched ahead of it, then waits for discord to answer.
+     */
+    public void sendSync(String webhook, MessageEvent message) {
+        // send anything still batched first so that ordering is preserved
+        MessageEvent pending = getBatcher(webhook).take();
+        if (pending != null) {
+            submit(webhook, pending);
+        }
+        try {
+            submit(webhook, message).get(SYNC_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            LOGGER.error("Error performing sync request.", e);
+        }
+    }
+
+    public void setBatchWindow(long window) {
+        if (batchWindow == window) {
+            return;
+        }
+        batchWindow = window;
+        // new batchers pick up the window, anything added to an old one is passed straight through
+        for (Map.Entry<String, WebhookBatcher> entry : batchers.entrySet()) {
+            batchers.remove(entry.getKey(), entry.getValue());
+            entry.getValue().flush();
+            entry.getValue().close();
+        }
+    }
+
+    /**
+     * Sends everything that is currently batched.
+     */
+    public void flush() {
+        for (WebhookBatcher batcher : batchers.values()) {
+            batcher.flush();
+        }
+    }
+
+    public int getQueueDepth() {
+        return dispatcher.getQueueDepth();
+    }
+
+    public long getQueueWait() {
+        return dispatcher.getWaitTime();
+    }
+
+    public boolean drain(long timeout) {
+        return dispatcher.drain(timeout);
+    }
+
+    /**
+     * Submits messages left in the spool by a previous run. Entries that can't be delivered are
+     * dropped from the spool.
+     */
+    public void replay(List<MessageSpool.Entry> entries) {
+        if (entries.isEmpty() || spool == null) {
+            return;
+        }
+        LOGGER.info("Replaying {} undelivered messages", entries.size());
+        int dropped = 0;
+        for (MessageSpool.Entry entry : entries) {
+            // one bad record must not stop the rest (or the service) from starting
+            try {
+                if (WebhookDispatcher.isValid(entry.getWebhook())) {
+                    submit(entry.getWebhook(), entry.getMessage(), entry.getSeq());
+                    continue;
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("Error replaying spooled message " + entry.getSeq(), e);
+            }
+            spool.ack(entry.getSeq());
+            dropped++;
+        }
+        if (dropped > 0) {
+            LOGGER.warn("Dropped {} spooled messages that can't be delivered", dropped);
+        }
+    }
+
+    /**
+     * Sends anything still batched and waits up to the timeout for the webhook queues to empty.
+     * Whatever is left stays in the spool for the next start.
+     *
+     * @return true if everything was delivered in time
+     */
+    public boolean shutdown(long timeout) {
+        long requests = 0, messages = 0;
+        for (Map.Entry<String, WebhookBatcher> entry : batchers.entrySet()) {
+            MessageEvent pending = entry.getValue().close();
+            if (pending != null) {
+                submit(entry.getKey(), pending);
+            }
+            requests += entry.getValue().getRequests();
+            messages += entry.getValue().getMessages();
+        }
+
+        long start = System.currentTimeMillis();
+        boolean drained = dispatcher.drain(timeout);
+        if (drained) {
+            LOGGER.info("sent {} messages in {} webhook requests, drained in {}ms", messages, requests, System.currentTimeMillis() - start);
+        } else {
+            LOGGER.warn("gave up waiting on {} webhook messages after {}ms", dispatcher.getQueueDepth(), timeout);
+        }
+
+        dispatcher.close();
+        if (spool != null) {
+            LOGGER.info("{} undelivered messages left in the spool", spool.getPending());
+            spool.close();
+        }
+        scheduler.shutdownNow();
+        return drained;
+    }
+
+    private WebhookBatcher getBatcher(String webhook) {
+        return batchers.computeIfAbsent(webhook, url -> new WebhookBatcher(batchWindow, scheduler, m -> submit(url, m)));
+    }
+
+    private CompletableFuture<Boolean> submit(String webhook, MessageEvent message) {
+        // a message that can never be delivered isn't worth persisting
+        if (spool == null || !WebhookDispatcher.isValid(webhook)) {
+            return dispatcher.submit(webhook, message);
+        }
+        return submit(webhook, message, spool.append(webhook, message));
+    }
+
+    private CompletableFuture<Boolean> submit(String webhook, MessageEvent message, long seq) {
+        CompletableFuture<Boolean> result = dispatcher.submit(webhook, message);
+        // rejected messages are acked too, only undelivered ones are kept for replay
+        result.whenComplete((success, error) -> {
+            if (error == null) {
+                spool.ack(seq);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Opens the spool described by the config, adding the messages it holds to {@code entries}.
+     *
+     * @return the spool, or null if it is disabled or couldn't be opened
+     */
+    public static MessageSpool openSpool(Config.Spool config, Path dir, List<MessageSpool.Entry> entries) {
+        if (!config.enabled) {
+            return null;
+        }
+        MessageSpool spool = new MessageSpool(
+                dir,
+                config.segmentKb * 1024L,
+                config.maxSizeMb * 1024L * 1024L,
+                TimeUnit.HOURS.toMillis(config.maxAgeHours)
+        );
+        try {
+            entries.addAll(spool.open());
+            return spool;
+        } catch (IOException e) {
+            LOGGER.error("Error opening message spool, messages will not be persisted.", e);
+            spool.close();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package me.dags.discordsync.storage;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps all links in memory, indexed in both directions. Each new link is appended to a journal,
+ * and the journal is periodically compacted into a snapshot in the same format as
+ * {@link FileUserStorage}, so existing user files are loaded as-is.
+ */
+public class JournalUserStorage implements UserStorage {
+
+    private final Path path;
+    private final Path journal;
+    private final Path compacting;
+    private final ScheduledExecutorService executor;
+
+    private final Map<String, String> bySnowflake = new ConcurrentHashMap<>();
+    private final Map<String, String> byId = new ConcurrentHashMap<>();
+
+    private Writer writer = null;
+    private int entries = 0;
+
+    public JournalUserStorage(Path path, long compactInterval) {
+        String name = path.getFileName().toString().replaceFirst("\\.json$", "");
+        this.path = path;
+        this.journal = path.resolveSibling(name + ".journal");
+        this.compacting = path.resolveSibling(name + ".journal.old");
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "discordsync-storage");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        StorageHelper.readUsers(path, (id, snowflake) -> link(snowflake, id));
+        entries += replay(compacting);
+        entries += replay(journal);
+        executor.scheduleWithFixedDelay(this::compact, compactInterval, compactInterval, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public String getId(String snowflake) {
+        return bySnowflake.getOrDefault(snowflake, "");
+    }
+
+    @Override
+    public String getSnowFlake(String uuid) {
+        return byId.getOrDefault(uuid, "");
+    }
+
+    @Override
+    public synchronized void setUser(String snowflake, UUID uuid) {
+        String id = uuid.toString();
+        if (link(snowflake, id)) {
+            append(snowflake, id);
+        }
+    }
+
+    @Override
+    public void iterate(BiConsumer<UUID, String> consumer) {
+        for (Map.Entry<String, String> entry : byId.entrySet()) {
+            consumer.accept(UUID.fromString(entry.getKey()), entry.getValue());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            // a scheduled compaction may still be writing the snapshot
+            executor.awaitTermination(5L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compact();
+        synchronized (this) {
+            closeWriter();
+        }
+    }
+
+    public void compact() {
+        Map<String, String> snapshot;
+        synchronized (this) {
+            if (entries == 0) {
+                return;
+            }
+            try {
+                closeWriter();
+                if (Files.exists(compacting) && Files.exists(journal)) {
+                    // a previous compaction didn't finish, its entries must be kept until a snapshot is written
+                    Files.write(compacting, Files.readAllBytes(journal), StandardOpenOption.APPEND);
+                    Files.delete(journal);
+                } else if (Files.exists(journal)) {
+                    Files.move(journal, compacting);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            snapshot = new HashMap<>(byId);
+            entries = 0;
+        }
+
+        try {
+            writeSnapshot(snapshot);
+            Files.deleteIfExists(compacting);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // links the pair one-to-one, dropping any previous link held by either side
+    private boolean link(String snowflake, String id) {
+        if (snowflake.isEmpty() || id.isEmpty()) {
+            return false;
+        }
+
+        String previousSnowflake = byId.put(id, snowflake);
+        if (snowflake.equals(previousSnowflake)) {
+            return false;
+        }
+        if (previousSnowflake != null) {
+            bySnowflake.remove(previousSnowflake, id);
+        }
+
+        String previousId = bySnowflake.put(snowflake, id);
+        if (previousId != null && !previousId.equals(id)) {
+            byId.remove(previousId, snowflake);
+        }
+
+        return true;
+    }
+
+    private void append(String snowflake, String id) {
+        try {
+            if (writer == null) {
+                writer = Files.newBufferedWriter(journal, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(id);
+            writer.write(' ');
+            writer.write(snowflake);
+            writer.write('\n');
+            writer.flush();
+            entries++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            writer = null;
+        }
+    }
+
+    private int replay(Path file) {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        int count = 0;
+        try {
+            String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            int start = 0;
+            // only complete lines are applied, a torn final line (crash mid-append) is skipped
+            for (int end = content.indexOf('\n'); end >= 0; end = content.indexOf('\n', start)) {
+                int split = content.indexOf(' ', start);
+                if (split > start && split < end) {
+                    link(content.substring(split + 1, end), content.substring(start, split));
+                    count++;
+                }
+                start = end + 1;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return count;
+    }
+
+    private void writeSnapshot(Map<String, String> snapshot) throws IOException {
+        WriteBehind.writeAtomic(path, out -> {
+            JsonWriter writer = new JsonWriter(out);
+            writer.setIndent("  ");
+            writer.beginObject();
+            writer.name("uuid").beginObject();
+            for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                writer.name(entry.getKey()).value(entry.getValue());
+            }
+            writer.endObject();
+            writer.name("snowflake").beginObject();
+            for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                writer.name(entry.getValue()).value(entry.getKey());
+            }
+            writer.endObject();
+            writer.endObject();
+            writer.flush();
+        });
+    }
+}
@@ -11,7 +11,6 @@ import com.google.gson.JsonPrimitive;
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.io.Reader;
-import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.LinkedList;
@@ -37,35 +36,35 @@ public class JsonConfig {
         return root;
     }
 
-    public JsonConfig set(String value, String... path) {
+    public synchronized JsonConfig set(String value, String... path) {
         return set(new JsonPrimitive(value), path);
     }
 
-    public JsonConfig set(Number value, String... path) {
+    public synchronized JsonConfig set(Number value, String... path) {
         return set(new JsonPrimitive(value), path);
     }
 
-    public JsonConfig set(Boolean value, String... path) {
+    public synchronized JsonConfig set(Boolean value, String... path) {
         return set(new JsonPrimitive(value), path);
     }
 
-    public String get(String defaultVal, String... path) {
+    public synchronized String get(String defaultVal, String... path) {
         return mustValue(new JsonPrimitive(defaultVal), path).getAsString();
     }
 
-    public int get(int defaultVal, String... path) {
+    public synchronized int get(int defaultVal, String... path) {
         return mustValue(new JsonPrimitive(defaultVal), path).getAsInt();
     }
 
-    public double get(double defaultVal, String... path) {
+    public synchronized double get(double defaultVal, String... path) {
         return mustValue(new JsonPrimitive(defaultVal), path).getAsDouble();
     }
 
-    public boolean get(boolean defaultVal, String... path) {
+    public synchronized boolean get(boolean defaultVal, String... path) {
         return mustValue(new JsonPrimitive(defaultVal), path).getAsBoolean();
     }
 
-    public <T> Iterable<T> getList(Function<JsonElement, T> mapper, String... path) {
+    public synchronized <T> Iterable<T> getList(Function<JsonElement, T> mapper, String... path) {
         JsonObject parent = mustParent(path);
         String key = getLastKey(path);
         JsonArray last = parent.getAsJsonArray(key);
@@ -83,11 +82,15 @@ public class JsonConfig {
         return list;
     }
 
-    public JsonConfig save() {
-        save(root, path);
+    public synchronized JsonConfig save() {
+        WriteBehind.schedule(path, writer -> writer.write(toJson()));
         return this;
     }
 
+    private synchronized String toJson() {
+        return GSON.toJson(root);
+    }
+
     private JsonConfig set(JsonElement element, String... path) {
         JsonObject parent = mustParent(path);
         String key = getLastKey(path);
@@ -149,16 +152,4 @@ public class JsonConfig {
 
         return root;
     }
-
-    private static void save(JsonObject root, Path path) {
-        path = path.toAbsolutePath();
-        try {
-            Files.createDirectories(path.getParent());
-            try (Writer writer = Files.newBufferedWriter(path)) {
-                GSON.toJson(root, writer);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
 }
@@ -0,0 +1,402 @@
+package me.dags.discordsync.storage;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Stores links in a memory-mapped file of fixed-size records (16 byte uuid + 8 byte snowflake),
+ * followed by two open-addressing (linear probing) hash indexes, uuid -> record and
+ * snowflake -> record. The indexes live in the file too, so opening the store doesn't parse or
+ * rebuild anything and practically nothing is held on the heap.
+ *
+ * <pre>
+ * header  [magic][version][capacity][count][live][dirty] (64 bytes)
+ * records [msb][lsb][snowflake] * capacity                (snowflake 0 = unlinked)
+ * indexes [record + 1] * capacity * 2, for each index     (0 = empty slot)
+ * </pre>
+ *
+ * The dirty flag is set while the store is open. If it is still set when the file is next opened
+ * (ie the server crashed) the indexes are rebuilt from the records.
+ */
+public class MappedUserStorage implements UserStorage {
+
+    private static final int MAGIC = 0x4453554C;
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int RECORD = 24;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int LIVE_OFFSET = 16;
+    private static final int DIRTY_OFFSET = 20;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final FileChannel channel;
+
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+    private int live;
+    private int mask;
+    private int uuidIndex;
+    private int snowflakeIndex;
+
+    public MappedUserStorage(Path path, Path legacy) throws IOException {
+        if (legacy != null && Files.exists(legacy) && !(Files.exists(path) && Files.size(path) >= HEADER)) {
+            migrate(path, legacy);
+        }
+
+        boolean exists = Files.exists(path) && Files.size(path) >= HEADER;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (exists) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION) {
+                channel.close();
+                throw new IOException("Unrecognised user storage file: " + path);
+            }
+            setCapacity(buffer.getInt(CAPACITY_OFFSET));
+            count = buffer.getInt(COUNT_OFFSET);
+            live = buffer.getInt(LIVE_OFFSET);
+            if (buffer.getInt(DIRTY_OFFSET) != 0) {
+                rebuild();
+            }
+        } else {
+            map(INITIAL_CAPACITY);
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(VERSION_OFFSET, VERSION);
+            writeHeader();
+        }
+
+        buffer.putInt(DIRTY_OFFSET, 1);
+    }
+
+    @Override
+    public String getId(String snowflake) {
+        long value = parseSnowflake(snowflake);
+        if (value == 0L) {
+            return "";
+        }
+
+        lock.readLock().lock();
+        try {
+            int record = find(snowflakeIndex, hash(value), value, 0L);
+            if (record < 0) {
+                return "";
+            }
+            int offset = offset(record);
+            return new UUID(buffer.getLong(offset), buffer.getLong(offset + 8)).toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getSnowFlake(String uuid) {
+        UUID id;
+        try {
+            id = UUID.fromString(uuid);
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+
+        long msb = id.getMostSignificantBits();
+        long lsb = id.getLeastSignificantBits();
+
+        lock.readLock().lock();
+        try {
+            int record = find(uuidIndex, hash(msb, lsb), msb, lsb);
+            if (record < 0) {
+                return "";
+            }
+            return Long.toUnsignedString(buffer.getLong(offset(record) + 16));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setUser(String snowflake, UUID uuid) {
+        long value = parseSnowflake(snowflake);
+        if (value == 0L) {
+            return;
+        }
+
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+
+        lock.writeLock().lock();
+        try {
+            if (!link(msb, lsb, value)) {
+                return;
+            }
+            writeHeader();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void iterate(BiConsumer<UUID, String> consumer) {
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                int offset = offset(i);
+                long snowflake = buffer.getLong(offset + 16);
+                if (snowflake != 0L) {
+                    UUID uuid = new UUID(buffer.getLong(offset), buffer.getLong(offset + 8));
+                    consumer.accept(uuid, Long.toUnsignedString(snowflake));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (!channel.isOpen()) {
+                return;
+            }
+            buffer.force();
+            buffer.putInt(DIRTY_OFFSET, 0);
+            buffer.force();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        return live;
+    }
+
+    // one-shot migration, the json file is left in place. The store is built under a temporary
+    // name and only moved into place once complete, so a crash part way through means it runs again
+    private static void migrate(Path path, Path legacy) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        MappedUserStorage storage = new MappedUserStorage(temp, null);
+        try {
+            StorageHelper.readUsers(legacy, (id, snowflake) -> storage.setUser(snowflake, UUID.fromString(id)));
+        } finally {
+            storage.close();
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // links the pair one-to-one, unlinking any record that held either side before
+    private boolean link(long msb, long lsb, long snowflake) throws IOException {
+        int byUuid = find(uuidIndex, hash(msb, lsb), msb, lsb);
+        if (byUuid >= 0 && buffer.getLong(offset(byUuid) + 16) == snowflake) {
+            return false;
+        }
+
+        int bySnowflake = find(snowflakeIndex, hash(snowflake), snowflake, 0L);
+        if (bySnowflake >= 0) {
+            remove(uuidIndex, bySnowflake);
+            remove(snowflakeIndex, bySnowflake);
+            buffer.putLong(offset(bySnowflake) + 16, 0L);
+            live--;
+        }
+
+        if (byUuid >= 0) {
+            remove(snowflakeIndex, byUuid);
+            buffer.putLong(offset(byUuid) + 16, snowflake);
+            insert(snowflakeIndex, hash(snowflake), byUuid);
+            return true;
+        }
+
+        if (count == capacity) {
+            // reclaim unlinked records before growing the file
+            resize(live < capacity / 2 ? capacity : capacity * 2);
+        }
+
+        int record = count++;
+        int offset = offset(record);
+        buffer.putLong(offset, msb);
+        buffer.putLong(offset + 8, lsb);
+        buffer.putLong(offset + 16, snowflake);
+        insert(uuidIndex, hash(msb, lsb), record);
+        insert(snowflakeIndex, hash(snowflake), record);
+        live++;
+        return true;
+    }
+
+    private int find(int index, int hash, long a, long b) {
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int value = buffer.getInt(index + slot * 4);
+            if (value == 0) {
+                return -1;
+            }
+            int record = value - 1;
+            if (matches(index, record, a, b)) {
+                return record;
+            }
+        }
+    }
+
+    private void insert(int index, int hash, int record) {
+        int slot = hash & mask;
+        while (buffer.getInt(index + slot * 4) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        buffer.putInt(index + slot * 4, record + 1);
+    }
+
+    // backward-shift deletion, so that no tombstones are needed
+    private void remove(int index, int record) {
+        int hole = hashOf(index, record) & mask;
+        while (buffer.getInt(index + hole * 4) != record + 1) {
+            hole = (hole + 1) & mask;
+        }
+
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            int value = buffer.getInt(index + next * 4);
+            if (value == 0) {
+                break;
+            }
+            int ideal = hashOf(index, value - 1) & mask;
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                buffer.putInt(index + hole * 4, value);
+                hole = next;
+            }
+        }
+
+        buffer.putInt(index + hole * 4, 0);
+    }
+
+    private boolean matches(int index, int record, long a, long b) {
+        int offset = offset(record);
+        if (index == uuidIndex) {
+            return buffer.getLong(offset) == a && buffer.getLong(offset + 8) == b;
+        }
+        return buffer.getLong(offset + 16) == a;
+    }
+
+    private int hashOf(int index, int record) {
+        int offset = offset(record);
+        if (index == uuidIndex) {
+            return hash(buffer.getLong(offset), buffer.getLong(offset + 8));
+        }
+        return hash(buffer.getLong(offset + 16));
+    }
+
+    private void resize(int newCapacity) throws IOException {
+        // compact the linked records to the front of the record region
+        int write = 0;
+        for (int read = 0; read < count; read++) {
+            int from = offset(read);
+            long snowflake = buffer.getLong(from + 16);
+            if (snowflake == 0L) {
+                continue;
+            }
+            if (read != write) {
+                int to = offset(write);
+                buffer.putLong(to, buffer.getLong(from));
+                buffer.putLong(to + 8, buffer.getLong(from + 8));
+                buffer.putLong(to + 16, snowflake);
+            }
+            write++;
+        }
+        count = write;
+
+        if (newCapacity != capacity) {
+            buffer.force();
+            map(newCapacity);
+        }
+
+        rebuild();
+    }
+
+    private void rebuild() throws IOException {
+        for (int i = uuidIndex; i < snowflakeIndex + capacity * 8; i += 8) {
+            buffer.putLong(i, 0L);
+        }
+
+        int records = count;
+        count = 0;
+        live = 0;
+        for (int i = 0; i < records; i++) {
+            int offset = offset(i);
+            long snowflake = buffer.getLong(offset + 16);
+            if (snowflake == 0L) {
+                continue;
+            }
+            // records are re-linked in order so that the latest link for either side wins
+            long msb = buffer.getLong(offset);
+            long lsb = buffer.getLong(offset + 8);
+            buffer.putLong(offset + 16, 0L);
+            count = i;
+            link(msb, lsb, snowflake);
+        }
+        count = records;
+        writeHeader();
+    }
+
+    private void map(int capacity) throws IOException {
+        long size = HEADER + (long) capacity * (RECORD + 16);
+        if (size > MAX_SIZE) {
+            throw new IOException("User storage is full");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        setCapacity(capacity);
+    }
+
+    private void setCapacity(int capacity) {
+        this.capacity = capacity;
+        this.mask = capacity * 2 - 1;
+        this.uuidIndex = HEADER + capacity * RECORD;
+        this.snowflakeIndex = uuidIndex + capacity * 8;
+    }
+
+    private void writeHeader() {
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(COUNT_OFFSET, count);
+        buffer.putInt(LIVE_OFFSET, live);
+    }
+
+    private static int offset(int record) {
+        return HEADER + record * RECORD;
+    }
+
+    private static long parseSnowflake(String snowflake) {
+        try {
+            return Long.parseUnsignedLong(snowflake);
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    private static int hash(long msb, long lsb) {
+        return hash(msb * 0x9E3779B97F4A7C15L ^ lsb);
+    }
+
+    private static int hash(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+}
@@ -0,0 +1,81 @@
+package me.dags.discordsync.storage;
+
+import me.dags.discordsync.metrics.Histogram;
+import me.dags.discordsync.metrics.Metrics;
+
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * Records the count and duration of each operation on the wrapped storage.
+ */
+public class MeteredUserStorage implements UserStorage {
+
+    private static final String NAME = "discordsync_storage_op_seconds";
+    private static final String HELP = "User storage operations by type";
+    private static final Histogram GET_ID = Metrics.histogram(NAME, HELP, "op=\"get_id\"", Histogram.FAST);
+    private static final Histogram GET_SNOWFLAKE = Metrics.histogram(NAME, HELP, "op=\"get_snowflake\"", Histogram.FAST);
+    private static final Histogram SET_USER = Metrics.histogram(NAME, HELP, "op=\"set_user\"", Histogram.FAST);
+    private static final Histogram ITERATE = Metrics.histogram(NAME, HELP, "op=\"iterate\"", Histogram.LATENCY);
+
+    private final UserStorage storage;
+
+    public MeteredUserStorage(UserStorage storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    public String getId(String snowflake) {
+        long start = System.nanoTime();
+        try {
+            return storage.getId(snowflake);
+        } finally {
+            GET_ID.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public String getSnowFlake(String uuid) {
+        long start = System.nanoTime();
+        try {
+            return storage.getSnowFlake(uuid);
+        } finally {
+            GET_SNOWFLAKE.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void setUser(String snowflake, UUID uuid) {
+        long start = System.nanoTime();
+        try {
+            storage.setUser(snowflake, uuid);
+        } finally {
+            SET_USER.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void iterate(BiConsumer<UUID, String> consumer) {
+        long start = System.nanoTime();
+        try {
+            storage.iterate(consumer);
+        } finally {
+            ITERATE.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public String getCachedId(String snowflake) {
+        return storage.getCachedId(snowflake);
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return storage.isReadOnly();
+    }
+
+    @Override
+    public void close() {
+        storage.close();
+    }
+}
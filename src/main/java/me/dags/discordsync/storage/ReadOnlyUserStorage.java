@@ -0,0 +1,70 @@
+package me.dags.discordsync.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * Answers lookups from a snapshot of a users json file and refuses new links. Used in place of
+ * the sql storage while its database can't be reached, so that linked players still look linked
+ * and nothing is written that could later be imported over newer links in the table.
+ */
+public class ReadOnlyUserStorage implements UserStorage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordSync");
+
+    private final Map<String, String> byId = new HashMap<>();
+    private final Map<String, String> bySnowflake = new HashMap<>();
+
+    public ReadOnlyUserStorage(Path path) {
+        StorageHelper.readUsers(path, (id, snowflake) -> {
+            if (id.isEmpty() || snowflake.isEmpty()) {
+                return;
+            }
+            String previous = byId.put(id, snowflake);
+            if (previous != null) {
+                bySnowflake.remove(previous, id);
+            }
+            previous = bySnowflake.put(snowflake, id);
+            if (previous != null && !previous.equals(id)) {
+                byId.remove(previous, snowflake);
+            }
+        });
+    }
+
+    @Override
+    public String getId(String snowflake) {
+        return bySnowflake.getOrDefault(snowflake, "");
+    }
+
+    @Override
+    public String getSnowFlake(String uuid) {
+        return byId.getOrDefault(uuid, "");
+    }
+
+    @Override
+    public void setUser(String snowflake, UUID uuid) {
+        LOGGER.warn("Not linking {} to {}, user storage is read only", uuid, snowflake);
+    }
+
+    @Override
+    public void iterate(BiConsumer<UUID, String> consumer) {
+        for (Map.Entry<String, String> entry : byId.entrySet()) {
+            consumer.accept(UUID.fromString(entry.getKey()), entry.getValue());
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    public int size() {
+        return byId.size();
+    }
+}
@@ -0,0 +1,407 @@
+package me.dags.discordsync.storage;
+
+import me.dags.discordsync.config.Config;
+import me.dags.discordsync.metrics.Counter;
+import me.dags.discordsync.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps links in a database table so that they are shared by every server pointed at it.
+ *
+ * New links are held in memory and written in batches (one transaction per batch), and are
+ * visible to this server straight away. Lookups go through a small cache in front of the table,
+ * including lookups that found nothing, so a link made on another server can take up to
+ * {@code cacheTtlSeconds} to be seen here.
+ */
+public class SqlUserStorage implements UserStorage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordSync");
+    private static final int IMPORT_BATCH = 1000;
+    private static final int LOOKUP_ATTEMPTS = 3;
+    private static final String CACHE = "discordsync_storage_cache_total";
+    private static final String CACHE_HELP = "User storage lookups answered by the cache";
+    private static final Counter HITS = Metrics.counter(CACHE, CACHE_HELP, "result=\"hit\"");
+    private static final Counter MISSES = Metrics.counter(CACHE, CACHE_HELP, "result=\"miss\"");
+
+    private final DataSource source;
+    private final String table;
+    private final String unlink;
+    private final String link;
+    private final ScheduledExecutorService executor;
+    private final Object flushing = new Object();
+
+    // writes not yet committed, linked one-to-one like the other storages
+    private final Map<String, String> pendingById = new HashMap<>();
+    private final Map<String, String> pendingBySnowflake = new HashMap<>();
+
+    private final NearCache cache;
+
+    // bumped by every write and flush so that a lookup racing one doesn't trust what it read before it
+    private long generation = 0L;
+
+    public SqlUserStorage(DataSource source, Config.Sql config, Path legacy) throws SQLException {
+        if (!config.table.matches("[A-Za-z0-9_]+")) {
+            throw new SQLException("Invalid table name: " + config.table);
+        }
+        this.source = source;
+        this.table = config.table;
+        this.cache = new NearCache(config.cacheSize, config.cacheTtlSeconds);
+
+        try (Connection connection = source.getConnection()) {
+            String upsert = upsert(connection.getMetaData().getDatabaseProductName().toLowerCase());
+            if (upsert == null) {
+                // no upsert, so the player's own row is deleted too and the link inserted fresh
+                this.unlink = "DELETE FROM " + table + " WHERE snowflake=? OR uuid=?";
+                this.link = "INSERT INTO " + table + " (uuid, snowflake) VALUES (?, ?)";
+            } else {
+                this.unlink = "DELETE FROM " + table + " WHERE snowflake=? AND uuid<>?";
+                this.link = upsert;
+            }
+            try (Statement statement = connection.createStatement()) {
+                // the primary key and unique constraint index both directions
+                statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + table
+                        + " (uuid CHAR(36) NOT NULL PRIMARY KEY, snowflake VARCHAR(20) NOT NULL UNIQUE)");
+            }
+        }
+
+        // every server sharing the table brings its own file, so it is imported whether or not the
+        // table already has links, then moved aside so that it is only imported once
+        if (legacy != null && Files.exists(legacy)) {
+            long start = System.currentTimeMillis();
+            int count = importUsers(legacy);
+            LOGGER.info("Imported {} users from {} in {}ms", count, legacy, System.currentTimeMillis() - start);
+            Path imported = legacy.resolveSibling(legacy.getFileName() + ".imported");
+            try {
+                Files.move(legacy, imported, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                LOGGER.error("Unable to rename " + legacy + ", it will be imported again on the next start", e);
+            }
+        }
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "discordsync-storage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1L, config.batchMs);
+        executor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String getId(String snowflake) {
+        return lookup(snowflake, pendingBySnowflake, pendingById, "SELECT uuid FROM " + table + " WHERE snowflake=?");
+    }
+
+    @Override
+    public String getSnowFlake(String uuid) {
+        return lookup(uuid, pendingById, pendingBySnowflake, "SELECT snowflake FROM " + table + " WHERE uuid=?");
+    }
+
+    @Override
+    public synchronized String getCachedId(String snowflake) {
+        String value = pendingBySnowflake.get(snowflake);
+        if (value == null) {
+            value = cache.get(snowflake);
+        }
+        return value == null ? "" : value;
+    }
+
+    @Override
+    public synchronized void setUser(String snowflake, UUID uuid) {
+        String id = uuid.toString();
+        if (snowflake.isEmpty()) {
+            return;
+        }
+
+        generation++;
+        String previousSnowflake = pendingById.put(id, snowflake);
+        if (previousSnowflake != null && !previousSnowflake.equals(snowflake)) {
+            pendingBySnowflake.remove(previousSnowflake, id);
+        }
+        String previousId = pendingBySnowflake.put(snowflake, id);
+        if (previousId != null && !previousId.equals(id)) {
+            pendingById.remove(previousId, snowflake);
+        }
+
+        cache.put(id, snowflake);
+    }
+
+    @Override
+    public void iterate(BiConsumer<UUID, String> consumer) {
+        flush();
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("SELECT uuid, snowflake FROM " + table)) {
+            while (results.next()) {
+                consumer.accept(UUID.fromString(results.getString(1).trim()), results.getString(2));
+            }
+        } catch (SQLException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Upserts every link in a {@link FileUserStorage} json file, {@value IMPORT_BATCH} to a transaction.
+     *
+     * @return the number of links imported
+     */
+    public int importUsers(Path path) throws SQLException {
+        // keyed by snowflake, a snowflake listed against several players goes to the last of them
+        Map<String, String> batch = new LinkedHashMap<>();
+        int[] count = {0};
+        SQLException[] error = {null};
+        StorageHelper.readUsers(path, (id, snowflake) -> {
+            if (error[0] != null || id.isEmpty() || snowflake.isEmpty()) {
+                return;
+            }
+            batch.put(snowflake, id);
+            count[0]++;
+            if (batch.size() >= IMPORT_BATCH) {
+                try {
+                    write(batch);
+                } catch (SQLException e) {
+                    error[0] = e;
+                }
+                batch.clear();
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        write(batch);
+        return count[0];
+    }
+
+    private void flush() {
+        synchronized (flushing) {
+            Map<String, String> batch;
+            synchronized (this) {
+                if (pendingBySnowflake.isEmpty()) {
+                    return;
+                }
+                batch = new HashMap<>(pendingBySnowflake);
+            }
+
+            try {
+                write(batch);
+            } catch (SQLException e) {
+                // kept pending, the next flush tries again
+                e.printStackTrace();
+                return;
+            }
+
+            synchronized (this) {
+                for (Map.Entry<String, String> entry : batch.entrySet()) {
+                    // only if it wasn't re-linked while the batch was being written
+                    if (pendingBySnowflake.remove(entry.getKey(), entry.getValue())) {
+                        pendingById.remove(entry.getValue(), entry.getKey());
+                    }
+                }
+                generation++;
+            }
+        }
+    }
+
+    // writes snowflake -> uuid links in one transaction, each snowflake is first taken from any other player
+    private void write(Map<String, String> batch) throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try (Connection connection = source.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement unlinks = connection.prepareStatement(unlink);
+                 PreparedStatement links = connection.prepareStatement(link)) {
+                for (Map.Entry<String, String> entry : batch.entrySet()) {
+                    unlinks.setString(1, entry.getKey());
+                    unlinks.setString(2, entry.getValue());
+                    unlinks.addBatch();
+                    links.setString(1, entry.getValue());
+                    links.setString(2, entry.getKey());
+                    links.addBatch();
+                }
+                unlinks.executeBatch();
+                links.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private String lookup(String key, Map<String, String> pending, Map<String, String> reverse, String sql) {
+        synchronized (this) {
+            String value = pending.get(key);
+            if (value != null) {
+                return value;
+            }
+            value = cache.get(key);
+            if (value != null) {
+                HITS.increment();
+                return value;
+            }
+        }
+        MISSES.increment();
+
+        for (int attempt = 1; ; attempt++) {
+            long seen;
+            synchronized (this) {
+                seen = generation;
+            }
+            String value;
+            try {
+                value = query(sql, key);
+            } catch (SQLException e) {
+                // nothing is cached, so the next lookup asks the database again
+                LOGGER.error("Error looking up user " + key, e);
+                synchronized (this) {
+                    return pending.getOrDefault(key, "");
+                }
+            }
+            synchronized (this) {
+                // a write or flush while querying means the row read may already be out of date
+                boolean stale = seen != generation;
+                if (stale && attempt < LOOKUP_ATTEMPTS) {
+                    continue;
+                }
+                String pendingValue = pending.get(key);
+                if (pendingValue != null) {
+                    return pendingValue;
+                }
+                // the row's other side may have been re-linked but not written yet
+                String relinked = value.isEmpty() ? null : reverse.get(value);
+                if (relinked != null && !relinked.equals(key)) {
+                    value = "";
+                }
+                // under constant writes the last read is answered with, but not cached
+                if (!stale) {
+                    cache.put(key, value);
+                }
+                return value;
+            }
+        }
+    }
+
+    private String query(String sql, String key) throws SQLException {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, key);
+            try (ResultSet results = statement.executeQuery()) {
+                return results.next() ? results.getString(1).trim() : "";
+            }
+        }
+    }
+
+    private String upsert(String name) {
+        if (name.contains("mysql") || name.contains("mariadb")) {
+            return "INSERT INTO " + table + " (uuid, snowflake) VALUES (?, ?) ON DUPLICATE KEY UPDATE snowflake=VALUES(snowflake)";
+        }
+        if (name.contains("sqlite") || name.contains("postgres")) {
+            return "INSERT INTO " + table + " (uuid, snowflake) VALUES (?, ?) ON CONFLICT (uuid) DO UPDATE SET snowflake=excluded.snowflake";
+        }
+        if (name.contains("h2")) {
+            return "MERGE INTO " + table + " (uuid, snowflake) KEY (uuid) VALUES (?, ?)";
+        }
+        return null;
+    }
+
+    /**
+     * A bounded, least recently used map whose entries expire after the ttl. Uuids and snowflakes
+     * share it, and a link is held as a pair of entries (one each way) that are added, evicted and
+     * expired together, so replacing either side of a link also drops whatever it was linked to.
+     * Lookups that found nothing are held as single entries with an empty value.
+     */
+    private static class NearCache {
+
+        private final int capacity;
+        private final long ttl;
+        private final LinkedHashMap<String, Cached> entries;
+
+        private NearCache(int capacity, long ttlSeconds) {
+            this.capacity = Math.max(2, capacity);
+            this.ttl = TimeUnit.SECONDS.toNanos(ttlSeconds);
+            this.entries = new LinkedHashMap<String, Cached>(16, 0.75F, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                    if (size() > NearCache.this.capacity) {
+                        NearCache.this.remove(eldest.getKey());
+                    }
+                    return false;
+                }
+            };
+        }
+
+        private String get(String key) {
+            Cached entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.time > ttl) {
+                remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+
+        private void put(String key, String value) {
+            remove(key);
+            if (value.isEmpty()) {
+                entries.put(key, new Cached(value, System.nanoTime()));
+                return;
+            }
+            remove(value);
+            long now = System.nanoTime();
+            entries.put(key, new Cached(value, now));
+            entries.put(value, new Cached(key, now));
+        }
+
+        private void remove(String key) {
+            Cached entry = entries.remove(key);
+            if (entry != null && !entry.value.isEmpty()) {
+                entries.remove(entry.value);
+            }
+        }
+    }
+
+    private static class Cached {
+
+        private final String value;
+        private final long time;
+
+        private Cached(String value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+}
@@ -2,12 +2,27 @@ package me.dags.discordsync.storage;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import me.dags.discordsync.PluginHelper;
+import me.dags.discordsync.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.service.sql.SqlService;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 
 /**
@@ -15,6 +30,7 @@ import java.util.function.Supplier;
  */
 public class StorageHelper {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger("DiscordSync");
     private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
 
     public static <T> T load(Path path, Class<T> type, Supplier<T> defVal) {
@@ -34,16 +50,110 @@ public class StorageHelper {
         return t;
     }
 
-    public static void write(Object o, Path path) {
-        try {
-            if (!Files.exists(path)) {
-                Files.createDirectories(path.getParent());
+    /**
+     * Compares the json form of two objects.
+     *
+     * @return the names of the top level members that differ between them
+     */
+    public static Set<String> diff(Object previous, Object next) {
+        Set<String> changes = new HashSet<>();
+        JsonElement a = GSON.toJsonTree(previous);
+        JsonElement b = GSON.toJsonTree(next);
+        if (!a.isJsonObject() || !b.isJsonObject()) {
+            if (!a.equals(b)) {
+                changes.add("");
+            }
+            return changes;
+        }
+
+        JsonObject left = a.getAsJsonObject();
+        JsonObject right = b.getAsJsonObject();
+        for (Map.Entry<String, JsonElement> entry : left.entrySet()) {
+            if (!entry.getValue().equals(right.get(entry.getKey()))) {
+                changes.add(entry.getKey());
             }
-            try (Writer writer = Files.newBufferedWriter(path)) {
-                GSON.toJson(o, writer);
+        }
+        for (Map.Entry<String, JsonElement> entry : right.entrySet()) {
+            if (!left.has(entry.getKey())) {
+                changes.add(entry.getKey());
             }
-        } catch (IOException e) {
+        }
+        return changes;
+    }
+
+    public static UserStorage createUserStorage(Path dir, Config.Storage config) {
+        return new MeteredUserStorage(openUserStorage(dir, config));
+    }
+
+    private static UserStorage openUserStorage(Path dir, Config.Storage config) {
+        Path path = dir.resolve("users.json");
+        switch (config.type.toLowerCase()) {
+            case "json":
+                return new FileUserStorage(path);
+            case "mapped":
+                try {
+                    return new MappedUserStorage(dir.resolve("users.dat"), path);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return new JournalUserStorage(path, config.compactIntervalMinutes);
+                }
+            case "sql":
+                try {
+                    // sponge's sql service pools connections per url
+                    SqlService sql = Sponge.getServiceManager().provide(SqlService.class).orElseThrow(() -> new SQLException("No SqlService"));
+                    return new SqlUserStorage(sql.getDataSource(PluginHelper.getPlugin(), config.sql.url), config.sql, path);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    // users.json may already be imported (and renamed), and anything linked in a
+                    // fallback file would later be imported over newer links in the table
+                    Path imported = dir.resolve("users.json.imported");
+                    Path snapshot = Files.exists(path) || !Files.exists(imported) ? path : imported;
+                    ReadOnlyUserStorage storage = new ReadOnlyUserStorage(snapshot);
+                    LOGGER.error("User database is unavailable, answering lookups from the {} links in {} and refusing new links until it is back", storage.size(), snapshot);
+                    return storage;
+                }
+            case "journal":
+            default:
+                return new JournalUserStorage(path, config.compactIntervalMinutes);
+        }
+    }
+
+    /**
+     * Streams the uuid -> snowflake links out of a {@link FileUserStorage} json file without
+     * building the json tree.
+     */
+    public static void readUsers(Path path, BiConsumer<String, String> consumer) {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try (Reader in = Files.newBufferedReader(path, StandardCharsets.UTF_8); JsonReader reader = new JsonReader(in)) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("uuid") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String id = reader.nextName();
+                        if (reader.peek() == JsonToken.STRING) {
+                            consumer.accept(id, reader.nextString());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
             e.printStackTrace();
         }
     }
+
+    public static void write(Object o, Path path) {
+        WriteBehind.schedule(path, writer -> GSON.toJson(o, writer));
+    }
 }
@@ -17,6 +17,23 @@ public interface UserStorage {
 
     void iterate(BiConsumer<UUID, String> consumer);
 
+    default void close() {}
+
+    /**
+     * Looks the snowflake up without going to a database, so it is safe to call from threads
+     * that mustn't block. Storages that hold every link in memory answer as {@link #getId} does.
+     */
+    default String getCachedId(String snowflake) {
+        return getId(snowflake);
+    }
+
+    /**
+     * @return true if new links are discarded rather than stored
+     */
+    default boolean isReadOnly() {
+        return false;
+    }
+
     default Optional<UUID> getUserId(String snowflake) {
         String id = getId(snowflake);
         if (id == null || id.isEmpty()) {
@@ -0,0 +1,93 @@
+package me.dags.discordsync.storage;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Writes files off-thread. Repeated saves of the same path within the debounce delay are
+ * collapsed into a single write of the latest content. Files are written to a temp file and
+ * then renamed over the target, so a crash mid-write never leaves a torn file behind.
+ */
+public class WriteBehind {
+
+    private static final long DELAY = 500L;
+    private static final long FLUSH_TIMEOUT = 10L;
+
+    private static final Map<Path, Content> pending = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "discordsync-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Schedules a write of the given path. The content is produced on the io thread when the
+     * write happens, so it should snapshot whatever state it needs in a thread-safe way.
+     */
+    public static void schedule(Path path, Content content) {
+        Path target = path.toAbsolutePath();
+        if (pending.put(target, content) == null) {
+            executor.schedule(() -> write(target), DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes everything that is still pending and waits for it to complete.
+     */
+    public static void flush() {
+        try {
+            executor.submit(() -> {
+                for (Path path : pending.keySet()) {
+                    write(path);
+                }
+            }).get(FLUSH_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void writeAtomic(Path path, Content content) throws IOException {
+        path = path.toAbsolutePath();
+        Files.createDirectories(path.getParent());
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            content.write(writer);
+        }
+
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void write(Path path) {
+        Content content = pending.remove(path);
+        if (content == null) {
+            return;
+        }
+        try {
+            writeAtomic(path, content);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public interface Content {
+
+        void write(Writer writer) throws IOException;
+    }
+}
@@ -0,0 +1,56 @@
+package me.dags.discordsync;
+
+import org.junit.Test;
+
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks {@link MessageProcessor} against the original regex implementation over a corpus of
+ * tricky inputs, under every combination of mention permissions.
+ */
+public class MessageProcessorTest {
+
+    // inputs containing '$' or '\' are excluded: the regex version treats them as group
+    // references/escapes in the replacement and either throws or mangles the message
+    private static final String[] CORPUS = {
+            "", "@", "@@", "@ ", " @", "@@@ @", "a@b", "me@example.com", "trailing @",
+            "@everyone", "@EVERYONE", "@EveryOne", "@everyone!", "@everyone@here", "@@everyone",
+            "@here", "@Here there", "@HERE", "@ here", "@here  @here", "@heree", "@her",
+            "@Notch", "@Notch can you tp me", "@user1 @user2 @user3", "hi @Notch and @jeb_",
+            "tab\t@here", "line\n@everyone", "@here\n@everyone", "x @here y @everyone z",
+            "@\u00f1ame", "\u2764 @everyone \u2764", "no mentions at all in this message",
+    };
+
+    @Test
+    public void matchesLegacyProcessor() {
+        for (int mask = 0; mask < 8; mask++) {
+            Predicate<String> source = permissions(mask);
+            for (String input : CORPUS) {
+                String expected = LegacyMessageProcessor.processContent(source, input);
+                String actual = MessageProcessor.processContent(source, input);
+                assertEquals("'" + input + "' with permissions " + mask, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void returnsInputWithoutMentions() {
+        String content = "no mentions at all in this message";
+        assertSame(content, MessageProcessor.processContent(permissions(0), content));
+    }
+
+    private static Predicate<String> permissions(int mask) {
+        return permission -> {
+            if (permission.equals(MessageProcessor.MENTION_EVERYONE)) {
+                return (mask & 1) != 0;
+            }
+            if (permission.equals(MessageProcessor.MENTION_HERE)) {
+                return (mask & 2) != 0;
+            }
+            return (mask & 4) != 0;
+        };
+    }
+}